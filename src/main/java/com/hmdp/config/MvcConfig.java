@@ -2,8 +2,8 @@ package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.LoginTokenService;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -17,13 +17,14 @@ import javax.annotation.Resource;
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginTokenService loginTokenService;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登陆拦截器 并排除不需要拦截的路径
         registry.addInterceptor(new LoginInterceptor()).excludePathPatterns(
                 "/user/code",
                 "/user/login",
+                "/user/token/refresh",
                 "/blog/hot",
                 "/shop/**",
                 "/shop-type/**",
@@ -32,6 +33,6 @@ public class MvcConfig implements WebMvcConfigurer {
         ).order(1);
 
         //token刷新拦截器
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(loginTokenService)).addPathPatterns("/**").order(0);
     }
 }
@@ -1,13 +1,16 @@
 package com.hmdp.controller;
 
 
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
+import com.hmdp.service.ISignService;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.SignKeyUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -36,6 +39,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private ISignService signService;
+
     /**
      * 发送手机验证码
      * 验证码保存到session中
@@ -62,9 +68,17 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(@RequestHeader(value = "authorization", required = false) String token){
+        return userService.logout(token);
+    }
+
+    /**
+     * 续期登录token
+     * @return 之后要使用的token
+     */
+    @PostMapping("/token/refresh")
+    public Result refreshToken(@RequestHeader(value = "authorization", required = false) String token){
+        return userService.refreshToken(token);
     }
 
     @GetMapping("/me")
@@ -87,4 +101,29 @@ public class UserController {
         // 返回
         return Result.ok(info);
     }
+
+    /**
+     * 今日签到
+     */
+    @PostMapping("/sign")
+    public Result sign(){
+        return signService.sign();
+    }
+
+    /**
+     * 连续签到天数
+     */
+    @GetMapping("/sign/count")
+    public Result signStreak(){
+        return signService.signStreak();
+    }
+
+    /**
+     * 某个月的签到天数
+     * @param month 月份 yyyyMM，不传为本月
+     */
+    @GetMapping("/sign/month")
+    public Result signCount(@RequestParam(value = "month", required = false) String month){
+        return signService.signCount(StrUtil.isBlank(month) ? null : SignKeyUtils.parseMonth(month));
+    }
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +19,14 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result updateShop(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryShopByName(String name, Integer current);
+
+    Result suggestShopNames(String prefix);
+
+    List<Shop> queryShopsByIds(List<Long> ids);
 }
@@ -0,0 +1,34 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Sign;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+import java.time.YearMonth;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ *
+ * @author qrpop
+ */
+public interface ISignService extends IService<Sign> {
+
+    Result sign();
+
+    /**
+     * 截止今天的连续签到天数
+     */
+    Result signStreak();
+
+    /**
+     * 某个月的签到天数，不传月份时为本月
+     */
+    Result signCount(YearMonth month);
+
+    /**
+     * 把一个用户已经结束的月份从位图归档到数据库，返回签到天数
+     */
+    int archiveMonth(Long userId, YearMonth month);
+}
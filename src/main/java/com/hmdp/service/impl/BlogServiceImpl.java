@@ -1,11 +1,46 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IFollowService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogFeedFanout;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -14,7 +49,344 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    private static final DefaultRedisScript<List> BLOG_LIKE_SCRIPT;
+    static {
+        BLOG_LIKE_SCRIPT = new DefaultRedisScript<>();
+        BLOG_LIKE_SCRIPT.setLocation(new ClassPathResource("blogLike.lua"));
+        BLOG_LIKE_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private IFollowService followService;
+    @Resource
+    private BlogFeedFanout blogFeedFanout;
+
+    /**
+     * 时间衰减：发布时间每晚这么多秒，要多一个赞才能排在同一位置
+     * 分数 = 点赞数 + 发布时间秒数 / secondsPerLike，点赞只需要zincrby，不用定时重算所有分数
+     */
+    @Value("${hmdp.blog.hot.seconds-per-like:3600}")
+    private long secondsPerLike;
+    /**
+     * 排行榜最多保留的博文数，超出的低分博文被截断
+     */
+    @Value("${hmdp.blog.hot.max-size:10000}")
+    private long maxSize;
+    @Value("${hmdp.blog.hot.rebuild-interval-hours:24}")
+    private long rebuildIntervalHours;
+    @Value("${hmdp.blog.hot.page-size:1000}")
+    private int rebuildPageSize;
+
+    private ScheduledExecutorService blogHotExecutor;
+    /**
+     * 读请求发现排行榜不存在时提交的重建任务是否还在排队或执行，同一时间只提交一个
+     */
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+
+    @PostConstruct
+    private void init() {
+        blogHotExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("blog-hot-", true));
+        //启动时排行榜不存在则从数据库构建，之后定时重建，纠正截断和重建期间丢失的加分
+        blogHotExecutor.execute(() -> {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+                rebuildHotRanking();
+            }
+        });
+        blogHotExecutor.scheduleWithFixedDelay(this::rebuildHotRanking, rebuildIntervalHours, rebuildIntervalHours, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        blogHotExecutor.shutdownNow();
+    }
+
+    @Override
+    public Result saveBlog(Blog blog) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        blog.setUserId(user.getId());
+        // 排行榜和feed的分数来自发布时间和点赞数，只能由服务端设置，不能信任请求体
+        blog.setId(null);
+        blog.setLiked(0);
+        blog.setComments(0);
+        blog.setCreateTime(LocalDateTime.now());
+        // 保存探店博文
+        save(blog);
+        // 加入排行榜，顺便截断超出的低分博文
+        stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, blog.getId().toString(), hotScore(0, blog.getCreateTime()));
+        stringRedisTemplate.opsForZSet().removeRange(BLOG_HOT_KEY, 0, -maxSize - 1);
+        // 推送到粉丝收件箱（异步）
+        blogFeedFanout.publish(user.getId(), blog.getId(), toEpochMilli(blog.getCreateTime()));
+        // 返回id
+        return Result.ok(blog.getId());
+    }
+
+    /**
+     * 点赞/取消点赞：只操作redis，点赞数由BlogLikeFlusher定时批量写回数据库
+     */
+    @Override
+    public Result likeBlog(Long id) {
+        Long userId = UserHolder.getUser().getId();
+        List<String> keys = Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKED_COUNT_KEY, BLOG_LIKED_DIRTY_KEY, BLOG_HOT_KEY);
+        //1.执行lua脚本，判断是否点过赞、更新点赞数、标记待刷盘
+        List<?> result = stringRedisTemplate.execute(BLOG_LIKE_SCRIPT, keys, id.toString(), userId.toString());
+        if (result == null) {
+            //2.这篇博文的点赞数还没在redis中初始化，从数据库读取一次
+            Blog blog = query().select("id", "liked").eq("id", id).one();
+            if (blog == null) {
+                return Result.fail("博文不存在！");
+            }
+            int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+            stringRedisTemplate.opsForHash().putIfAbsent(BLOG_LIKED_COUNT_KEY, id.toString(), String.valueOf(liked));
+            stringRedisTemplate.execute(BLOG_LIKE_SCRIPT, keys, id.toString(), userId.toString());
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 热门博文：zrevrange分页取id和分数，博文内容批量查缓存，点赞数从分数中还原
+     */
+    @Override
+    public Result queryHotBlog(Integer current) {
+        //1.从排行榜取当前页的id和分数（页码小于1按第一页处理，否则负数下标会取到排行榜末尾）
+        current = Math.max(current, 1);
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(BLOG_HOT_KEY, start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (tuples == null || tuples.isEmpty()) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+                //超出排行榜范围
+                return Result.ok(Collections.emptyList());
+            }
+            //排行榜还没构建，先查数据库，后台构建（冷启动时大量请求只提交一次重建）
+            if (rebuildPending.compareAndSet(false, true)) {
+                blogHotExecutor.execute(() -> {
+                    try {
+                        rebuildHotRanking();
+                    } finally {
+                        rebuildPending.set(false);
+                    }
+                });
+            }
+            return Result.ok(queryHotBlogFromDb(current));
+        }
+        List<Long> ids = new ArrayList<>(tuples.size());
+        Map<Long, Double> scores = new HashMap<>(tuples.size() * 2);
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            Long id = Long.valueOf(tuple.getValue());
+            ids.add(id);
+            scores.put(id, tuple.getScore());
+        }
+        //2.批量查博文（一次mget，未命中的一次in查询），返回的是副本，下面可以直接填充点赞数、作者、是否点赞
+        Map<Long, Blog> blogs = cacheClient.multiGet(CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        //3.按排行榜顺序组装，缓存中的点赞数可能是旧的，用分数减去时间分还原
+        List<Blog> records = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Blog blog = blogs.get(id);
+            if (blog == null) {
+                //博文已删除，等下次重建移出排行榜
+                continue;
+            }
+            blog.setLiked((int) Math.round(scores.get(id) - timeScore(blog.getCreateTime())));
+            records.add(blog);
+        }
+        fillBlogUsers(records);
+        fillBlogLiked(records);
+        return Result.ok(records);
+    }
+
+    /**
+     * 关注的人发布的博文，滚动分页
+     * 收件箱（推模式）和关注的大V发件箱（拉模式）合并，按发布时间倒序
+     * @param max 上一页最小的时间戳，第一页为当前时间
+     * @param offset 上一页中时间戳等于max的博文数，跳过这些已经返回的博文
+     */
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        Long userId = UserHolder.getUser().getId();
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        //offset不能是负数，否则subList越界
+        int skip = offset == null ? 0 : Math.max(offset, 0);
+        //1.收件箱 + 关注的大V发件箱，每个来源一次管道取出 score<=max 的前 offset+size 条
+        List<String> sources = new ArrayList<>();
+        sources.add(FEED_KEY + userId);
+        followService.queryFollowedBigAuthors(userId).forEach(authorId -> sources.add(FEED_OUTBOX_KEY + authorId));
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String source : sources) {
+                connection.zRevRangeByScoreWithScores(source.getBytes(StandardCharsets.UTF_8), 0, max, 0, skip + size);
+            }
+            return null;
+        });
+        //2.合并去重（作者从推模式切换到拉模式时两边可能都有），按时间倒序，时间相同按id倒序，翻页顺序稳定
+        Map<Long, Long> merged = new HashMap<>();
+        for (Object result : results) {
+            @SuppressWarnings("unchecked")
+            Set<ZSetOperations.TypedTuple<String>> tuples = (Set<ZSetOperations.TypedTuple<String>>) result;
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                merged.put(Long.valueOf(tuple.getValue()), tuple.getScore().longValue());
+            }
+        }
+        List<Map.Entry<Long, Long>> entries = new ArrayList<>(merged.entrySet());
+        entries.sort((a, b) -> !a.getValue().equals(b.getValue())
+                ? Long.compare(b.getValue(), a.getValue()) : Long.compare(b.getKey(), a.getKey()));
+        ScrollResult scrollResult = new ScrollResult();
+        if (entries.size() <= skip) {
+            scrollResult.setList(Collections.emptyList());
+            scrollResult.setMinTime(max);
+            scrollResult.setOffset(skip);
+            return Result.ok(scrollResult);
+        }
+        List<Map.Entry<Long, Long>> page = entries.subList(skip, Math.min(skip + size, entries.size()));
+        //3.下一页的minTime和offset：本页最小时间戳，以及本页中等于它的条数
+        long minTime = page.get(page.size() - 1).getValue();
+        int os = 0;
+        for (int i = page.size() - 1; i >= 0 && page.get(i).getValue() == minTime; i--) {
+            os++;
+        }
+        if (minTime == max) {
+            os += skip;
+        }
+        //4.批量查博文，按feed顺序组装（返回的是副本，可以直接填充）
+        List<Long> ids = page.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+        Map<Long, Blog> blogs = cacheClient.multiGet(CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        List<Blog> records = ids.stream().map(blogs::get).filter(Objects::nonNull).collect(Collectors.toList());
+        fillBlogUsers(records);
+        fillBlogLiked(records);
+        scrollResult.setList(records);
+        scrollResult.setMinTime(minTime);
+        scrollResult.setOffset(os);
+        return Result.ok(scrollResult);
+    }
+
+    /**
+     * 排行榜不存在时的兜底：按点赞数排序分页查询数据库
+     */
+    private List<Blog> queryHotBlogFromDb(Integer current) {
+        Page<Blog> page = query()
+                .orderByDesc("liked")
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+        List<Blog> records = page.getRecords();
+        fillBlogUsers(records);
+        fillBlogLiked(records);
+        return records;
+    }
+
+    /**
+     * 批量查询作者（一次mget，未命中的一次in查询），和fillBlogLiked一样只能填充本次请求独有的对象
+     */
+    private void fillBlogUsers(List<Blog> records) {
+        Map<Long, UserDTO> users = userService.queryUserDTOs(
+                records.stream().map(Blog::getUserId).collect(Collectors.toSet()));
+        records.forEach(blog ->{
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        });
+    }
+
+    /**
+     * 当前用户是否点过赞，一次管道sismember；未登录时都是false
+     * records必须是本次请求独有的对象（数据库查询结果或者CacheClient返回的副本），不能是共享的缓存对象
+     */
+    private void fillBlogLiked(List<Blog> records) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || records.isEmpty()) {
+            records.forEach(blog -> blog.setIsLike(false));
+            return;
+        }
+        byte[] userId = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> liked = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : records) {
+                connection.sIsMember((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < records.size(); i++) {
+            records.get(i).setIsLike(Boolean.TRUE.equals(liked.get(i)));
+        }
+    }
+
+    /**
+     * 从数据库重建排行榜：按id分页读取点赞数和发布时间，写入临时key后rename，读请求不会看到一半的排行榜
+     * 只有一个实例重建
+     */
+    private void rebuildHotRanking() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_BLOG_HOT_KEY, "1", 10, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            String tmpKey = BLOG_HOT_KEY + ":tmp";
+            stringRedisTemplate.delete(tmpKey);
+            long lastId = 0;
+            long count = 0;
+            while (true) {
+                List<Blog> page = query().select("id", "liked", "create_time")
+                        .gt("id", lastId).orderByAsc("id").last("limit " + rebuildPageSize).list();
+                if (page.isEmpty()) {
+                    break;
+                }
+                //还没刷盘的点赞数以redis为准
+                List<Object> counts = stringRedisTemplate.opsForHash().multiGet(BLOG_LIKED_COUNT_KEY,
+                        page.stream().map(blog -> (Object) blog.getId().toString()).collect(Collectors.toList()));
+                Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(page.size() * 2);
+                for (int i = 0; i < page.size(); i++) {
+                    Blog blog = page.get(i);
+                    Object likedCount = counts.get(i);
+                    int liked = likedCount != null ? Integer.parseInt(likedCount.toString()) : blog.getLiked() == null ? 0 : blog.getLiked();
+                    tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), hotScore(liked, blog.getCreateTime())));
+                }
+                stringRedisTemplate.opsForZSet().add(tmpKey, tuples);
+                //每页截断一次，临时key不会超过 maxSize + pageSize
+                stringRedisTemplate.opsForZSet().removeRange(tmpKey, 0, -maxSize - 1);
+                count += page.size();
+                lastId = page.get(page.size() - 1).getId();
+            }
+            if (count == 0) {
+                stringRedisTemplate.delete(BLOG_HOT_KEY);
+            } else {
+                stringRedisTemplate.rename(tmpKey, BLOG_HOT_KEY);
+            }
+            log.info("热门博文排行榜重建完成，博文{}条，耗时{}ms", count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("热门博文排行榜重建失败", e);
+        } finally {
+            stringRedisTemplate.delete(LOCK_BLOG_HOT_KEY);
+        }
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private double hotScore(int liked, LocalDateTime createTime) {
+        return liked + timeScore(createTime);
+    }
+
+    /**
+     * 时间分：发布时间秒数 / secondsPerLike，越新的博文基础分越高，相当于旧博文的点赞随时间衰减
+     */
+    private double timeScore(LocalDateTime createTime) {
+        if (createTime == null) {
+            return 0;
+        }
+        return (double) createTime.atZone(ZoneId.systemDefault()).toEpochSecond() / secondsPerLike;
+    }
 }
@@ -1,11 +1,22 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.UserHolder;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +28,80 @@ import org.springframework.stereotype.Service;
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Override
+    public Result follow(Long followUserId, Boolean isFollow) {
+        Long userId = UserHolder.getUser().getId();
+        String key = FOLLOWS_KEY + userId;
+        if (Boolean.TRUE.equals(isFollow)) {
+            //1.关注，新增数据，同时记入关注集合（拉取大V的发件箱时用）
+            if (isFollowing(userId, followUserId)) {
+                return Result.ok();
+            }
+            Follow follow = new Follow();
+            follow.setUserId(userId);
+            follow.setFollowUserId(followUserId);
+            try {
+                save(follow);
+            } catch (DuplicateKeyException e) {
+                //并发关注同一个人，唯一索引uk_user_follow保证只有一条
+                return Result.ok();
+            }
+            //关注集合不存在时不能直接sadd，否则集合里只有这一个人，之前关注的大V会从feed中消失
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+                stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+            } else {
+                loadFollows(userId);
+            }
+        } else {
+            //2.取关，删除数据，同时从收件箱删除已经推送过来的博文（作者的博文都在发件箱中）
+            boolean isSuccess = remove(new QueryWrapper<Follow>()
+                    .eq("user_id", userId).eq("follow_user_id", followUserId));
+            if (isSuccess) {
+                stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+                Set<String> blogIds = stringRedisTemplate.opsForZSet().range(FEED_OUTBOX_KEY + followUserId, 0, -1);
+                if (blogIds != null && !blogIds.isEmpty()) {
+                    stringRedisTemplate.opsForZSet().remove(FEED_KEY + userId, blogIds.toArray());
+                }
+            }
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result isFollow(Long followUserId) {
+        Long userId = UserHolder.getUser().getId();
+        return Result.ok(isFollowing(userId, followUserId));
+    }
+
+    @Override
+    public Set<String> queryFollowedBigAuthors(Long userId) {
+        String key = FOLLOWS_KEY + userId;
+        //关注集合不存在（之前的关注数据），从数据库加载一次
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key)) && !loadFollows(userId)) {
+            return Collections.emptySet();
+        }
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect(key, FEED_BIG_AUTHOR_KEY);
+        return bigAuthors == null ? Collections.emptySet() : bigAuthors;
+    }
+
+    /**
+     * 从数据库加载用户的关注集合 follows:{userId}
+     * @return 是否有关注的人
+     */
+    private boolean loadFollows(Long userId) {
+        String[] followUserIds = query().select("follow_user_id").eq("user_id", userId).list()
+                .stream().map(follow -> follow.getFollowUserId().toString()).toArray(String[]::new);
+        if (followUserIds.length == 0) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(FOLLOWS_KEY + userId, followUserIds);
+        return true;
+    }
+
+    private boolean isFollowing(Long userId, Long followUserId) {
+        return query().eq("user_id", userId).eq("follow_user_id", followUserId).count() > 0;
+    }
 }
@@ -4,22 +4,39 @@ import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheBloomFilters;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.CacheRebuildExecutor;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SystemConstants;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -38,22 +55,39 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private CacheBloomFilters cacheBloomFilters;
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    /**
+     * 附近店铺的查询半径
+     */
+    @Value("${hmdp.geo.radius-meters:5000}")
+    private double radiusMeters;
 
     /**
      * 根据id查询商户信息
      */
     @Override
     public Result queryById(Long id) {
-        //缓存空值解决缓存穿透的查询方法
-        Shop shop = queryWithPassThrough(id);
+        //缓存空值解决缓存穿透的查询方法（本地缓存 + redis两级缓存）
+//        Shop shop = queryWithPassThrough(id);
 //        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         //互斥锁解决缓存击穿的查询方法
-//        Shop shop = queryWithMutex(id);
+//        Shop shop = cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         //逻辑过期解决缓存击穿
 //        Shop shop = queryWithLogicalExpire(id);
-//        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //启动时预热全部店铺，热点店铺在逻辑过期前提前刷新
+        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
 
         if (shop == null){
@@ -62,13 +96,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    /**
-     * 线程池
-     */
-    private static final ExecutorService CACHE_REBUILD_EXCUTOR = Executors.newFixedThreadPool(10);
-
     /**
      * 缓存穿透（根据id查shop信息）
+     * 早期实现，只能读取json格式的缓存，已由CacheClient.queryWithPassThrough代替
      */
     public Shop queryWithPassThrough(Long id){
         String shopKey = CACHE_SHOP_KEY + id;
@@ -98,6 +128,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
     /**
      * 用逻辑过期解决缓存击穿
+     * 早期实现，只能读取json格式的缓存，已由CacheClient.queryWithLogicalExpire代替
      * @param id
      * @return
      */
@@ -126,72 +157,25 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (getLock(lockKey)) {
             //获取成功，开辟新线程重建缓存（根据id到db查询，写入redis，释放互斥锁）
             //获取锁成功后应该再次检测redis缓存是否过期，DoubleCheck，若存在则无需重建缓存
-            CACHE_REBUILD_EXCUTOR.submit(()->{
+            //提交到共享的重建线程池，线程池满时释放锁，直接返回旧数据
+            boolean submitted = cacheRebuildExecutor.submit(shopKey, () -> {
                 //重建缓存
                 try {
                     this.savaShopToRedis(id,20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 } finally {
                     //释放锁
                     unLock(lockKey);
                 }
             });
+            if (!submitted) {
+                unLock(lockKey);
+            }
         }
 
         //没能成功获取，或者重建缓存后都要返回过期的shop信息
         return shop;
     }
 
-    /**
-     * 互斥锁解决缓存击穿
-     */
-    private Shop queryWithMutex(Long id) {
-        //缓存key
-        String shopKey = CACHE_SHOP_KEY + id;
-        //1.从redis查询商铺
-        String shopJson = stringRedisTemplate.opsForValue().get(shopKey);
-        //2.判断缓存是否命中
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3.命中则返回商铺信息（将json转为java对象返回）
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //判断命中的是否是空值而非空字符串
-        if (shopJson != null) {
-            //即命中空字符串“”
-            return null;
-        }
-        //4.未命中先尝试获取互斥锁
-        Shop shop;
-        String lockKey = LOCK_SHOP_KEY + id;
-        try {
-            if (!getLock(lockKey)){
-                //获取互斥锁失败，休眠一段时间并重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            //获取互斥锁成功根据id查询数据库并写入redis
-            shop = getById(id);
-            //模拟重建缓存（从数据库查询的延迟）
-            Thread.sleep(200);
-            //5.判断数据库中是否存在该商铺
-            if (shop == null) {
-                //6.不存在则返回错误  给redis写入空值防止缓存穿透
-                stringRedisTemplate.opsForValue().set(shopKey, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //7.存在则将商铺数据写入redis，并设置过期时间
-            stringRedisTemplate.opsForValue().set(shopKey, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //8.释放互斥锁
-            unLock(lockKey);
-        }
-        //9.返回数据
-        return shop;
-    }
-
     /**
      * 获取锁
      * 用redis中的setnx（stringRedisTemplate.opsForValue().setIfAbsent）设置一个key-value，过期时间比实际业务要长
@@ -209,8 +193,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(key);
     }
     /**
-     * 根据id修改店铺，先修改数据库，再删除缓存
-     * 添加事务，在更新数据库、删除缓存出现异常时进行回滚 确保数据库和焕勋操作的原子性（都成功或都失败）
+     * 根据id修改店铺，先修改数据库，事务提交后再删除缓存
+     * 删除缓存如果在提交前执行，并发的读请求可能在提交前把旧数据写回缓存
      */
     @Override
     @Transactional
@@ -219,13 +203,124 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (shopId == null) {
             return Result.fail("店铺id不能为空！");
         }
-        //1.更新数据库
+        //1.更新数据库，记下原来的类型，类型变了要从原来的geo key中删除
+        Shop old = query().select("id", "type_id").eq("id", shopId).one();
+        if (old == null) {
+            return Result.fail("店铺不存在！");
+        }
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        //2.事务提交后删除缓存（延迟双删，发件箱兜底），同时通知所有实例清除本地缓存
+        cacheInvalidator.invalidateAfterCommit(CACHE_SHOP_KEY + shop.getId());
+        //3.事务提交后同步地理位置
+        shopGeoIndex.syncAfterCommit(shopId, old.getTypeId());
+        //4.事务提交后通知所有实例刷新搜索索引
+        shopSearchIndex.refreshAfterCommit(shopId);
         return Result.ok();
     }
 
+    /**
+     * 新增店铺，写入数据库后加入布隆过滤器
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器，否则新店铺会被当成不存在的id拦截
+        cacheBloomFilters.put(CACHE_SHOP_KEY, shop.getId());
+        //3.写入地理位置
+        shopGeoIndex.add(shop);
+        //4.加入搜索索引
+        shopSearchIndex.refreshAfterCommit(shop.getId());
+        //5.返回店铺id
+        return Result.ok(shop.getId());
+    }
+
+    /**
+     * 根据类型分页查询店铺
+     * 传了坐标时按距离由近到远：georadius取出前 current * pageSize 个，跳过前面几页；没传坐标时按数据库分页
+     */
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+        //1.没有坐标，根据类型分页查询，只查id，不查总数
+        if (x == null || y == null) {
+            Page<Shop> page = query()
+                    .select("id")
+                    .eq("type_id", typeId)
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE, false));
+            return Result.ok(queryShopsByIds(page.getRecords().stream().map(Shop::getId).collect(Collectors.toList())));
+        }
+        //2.按距离查询到当前页为止的店铺id（页码小于1按第一页处理，否则subList越界）
+        current = Math.max(current, 1);
+        //按long计算，页码很大时不溢出；georadius最多取max-results个，超出的页返回空
+        long from = (long) (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        long end = (long) current * SystemConstants.DEFAULT_PAGE_SIZE;
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results =
+                shopGeoIndex.search(typeId.longValue(), x, y, radiusMeters, end);
+        if (results == null || results.getContent().size() <= from) {
+            return Result.ok(Collections.emptyList());
+        }
+        //3.截取当前页，记下距离
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = results.getContent().subList((int) from, results.getContent().size());
+        List<Long> ids = new ArrayList<>(content.size());
+        Map<Long, Double> distances = new HashMap<>(content.size() * 2);
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : content) {
+            Long id = Long.valueOf(result.getContent().getName());
+            ids.add(id);
+            distances.put(id, result.getDistance().getValue());
+        }
+        //4.根据id批量从缓存查询店铺，按距离顺序返回
+        //距离只属于这次查询的坐标，只能写在本次请求独有的副本上，不能写进缓存中的店铺
+        List<Shop> shops = queryShopsByIds(ids);
+        shops.forEach(shop -> shop.setDistance(distances.get(shop.getId())));
+        return Result.ok(shops);
+    }
+
+    /**
+     * 根据名称关键字分页查询店铺
+     * 有关键字时查本地倒排索引，按相关度排序；没有关键字或者索引还没构建好时按数据库分页
+     */
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        if (StrUtil.isNotBlank(name) && shopSearchIndex.isReady()) {
+            //页码小于1按第一页处理
+            int from = (Math.max(current, 1) - 1) * SystemConstants.MAX_PAGE_SIZE;
+            List<Long> ids = shopSearchIndex.search(name, from, SystemConstants.MAX_PAGE_SIZE);
+            return Result.ok(queryShopsByIds(ids));
+        }
+        // 根据名称分页查询，只查id，不查总数
+        Page<Shop> page = query()
+                .select("id")
+                .like(StrUtil.isNotBlank(name), "name", name)
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+        return Result.ok(queryShopsByIds(page.getRecords().stream().map(Shop::getId).collect(Collectors.toList())));
+    }
+
+    /**
+     * 店铺名称自动补全
+     */
+    @Override
+    public Result suggestShopNames(String prefix) {
+        if (StrUtil.isBlank(prefix) || !shopSearchIndex.isReady()) {
+            return Result.ok(Collections.emptyList());
+        }
+        return Result.ok(shopSearchIndex.suggest(prefix, SystemConstants.MAX_PAGE_SIZE));
+    }
+
+    /**
+     * 根据id列表批量查询店铺，走缓存（一次管道读取，未命中的一次in查询），按ids的顺序返回
+     * 返回的店铺是CacheClient给出的副本，调用方可以填充距离等请求相关的字段
+     */
+    @Override
+    public List<Shop> queryShopsByIds(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, Shop> shopMap = cacheClient.multiGetWithLogicalExpire(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity(), (a, b) -> a)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return ids.stream().map(shopMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
     /**
      * 存储含逻辑过期时间的存储店铺信息到redis的方法
      * @param id
@@ -240,12 +335,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        //在当前时间加上定义的逻辑过期时间
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(redisData));
+        //2.封装逻辑过期时间并写入redis（和CacheClient读取的格式一致）
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 }
@@ -46,17 +46,28 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
             List<ShopType> shopTypeList = JSONUtil.toList(shopTypeJson, ShopType.class);
             return Result.ok(shopTypeList);
         }
-        //3.未命中就去数据库查询
-        List<ShopType> shopTypeList = query().orderByAsc("sort").list();
+        //3.未命中就去数据库查询，并存储到redis
+        List<ShopType> shopTypeList = refreshShopTypeCache();
         if (shopTypeList == null){
             //4.数据库中不存在返回错误信息
             return Result.fail("无店铺类别！");
         }
-        //5.数据库中存在则存储到redis 并返回给客户端
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_KEY,JSONUtil.toJsonStr(shopTypeList));
+        //5.返回给客户端
         return Result.ok(shopTypeList);
     }
 
+    /**
+     * 从数据库查询店铺分类并写入redis，查询未命中和启动预热时调用
+     */
+    @Override
+    public List<ShopType> refreshShopTypeCache() {
+        List<ShopType> shopTypeList = query().orderByAsc("sort").list();
+        if (shopTypeList != null) {
+            stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_KEY,JSONUtil.toJsonStr(shopTypeList));
+        }
+        return shopTypeList;
+    }
+
     /**
      * 添加缓存的店铺分类数据查询（List）
      * redis读写是json 数据库读写是bean 返回给客户端是bean
@@ -0,0 +1,160 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import com.hmdp.service.ISignService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.SignKeyUtils.signKey;
+
+/**
+ * <p>
+ *  签到：每个用户每月一个redis位图，签到一次setbit；已经结束的月份由SignArchiver归档到tb_sign
+ * </p>
+ *
+ * @author qrpop
+ */
+@Service
+public class SignServiceImpl extends ServiceImpl<SignMapper, Sign> implements ISignService {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 连续签到最多往前统计的月数
+     */
+    @Value("${hmdp.sign.streak-max-months:12}")
+    private int streakMaxMonths;
+
+    @Override
+    public Result sign() {
+        //1.获取当前登录用户和今天的日期
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        //2.写入redis setbit sign:{userId}:{yyyyMM} 今天是本月第几天-1 1
+        stringRedisTemplate.opsForValue().setBit(signKey(userId, YearMonth.from(today)), today.getDayOfMonth() - 1, true);
+        return Result.ok();
+    }
+
+    /**
+     * 连续签到天数：bitfield取出本月截止今天的签到记录，从最后一位往前数连续的1
+     * 今天还没签到时从昨天开始数；一直签到到月初时继续数上个月
+     */
+    @Override
+    public Result signStreak() {
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        YearMonth month = YearMonth.from(today);
+        int days = today.getDayOfMonth();
+        //1.本月截止今天的签到记录，最后一位是今天
+        long bits = monthBits(userId, month, days);
+        if ((bits & 1) == 0) {
+            //今天还没签到，不算断签
+            bits >>>= 1;
+            days--;
+        }
+        int streak = 0;
+        for (int i = 0; i < streakMaxMonths; i++) {
+            //2.末尾连续的1的个数
+            int ones = Math.min(Long.numberOfTrailingZeros(~bits), days);
+            streak += ones;
+            if (ones < days) {
+                break;
+            }
+            //3.这个月一直签到到月初，接着数上个月（位图归档后过期的月份从tb_sign读取）
+            month = month.minusMonths(1);
+            days = month.lengthOfMonth();
+            bits = archivedMonthBits(userId, month);
+        }
+        return Result.ok(streak);
+    }
+
+    @Override
+    public Result signCount(YearMonth month) {
+        Long userId = UserHolder.getUser().getId();
+        if (month == null) {
+            month = YearMonth.now();
+        }
+        //1.位图还在redis中，bitcount
+        byte[] key = signKey(userId, month).getBytes(StandardCharsets.UTF_8);
+        Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                Boolean.TRUE.equals(connection.exists(key)) ? connection.bitCount(key) : null);
+        if (count != null) {
+            return Result.ok(count);
+        }
+        //2.已经归档，查数据库
+        return Result.ok(query().eq("user_id", userId)
+                .eq("year", month.getYear()).eq("month", month.getMonthValue()).count());
+    }
+
+    /**
+     * 先删除这个月已经归档的记录再写入，重复归档不会产生重复记录
+     */
+    @Override
+    @Transactional
+    public int archiveMonth(Long userId, YearMonth month) {
+        long bits = monthBits(userId, month, month.lengthOfMonth());
+        List<Sign> signs = new ArrayList<>();
+        for (int day = 1; day <= month.lengthOfMonth(); day++) {
+            //第day天在从高到低的第day位
+            if ((bits >>> (month.lengthOfMonth() - day) & 1) == 1) {
+                signs.add(new Sign().setUserId(userId).setYear(month.getYear()).setMonth(month.getMonthValue())
+                        .setDate(month.atDay(day)).setIsBackup(false));
+            }
+        }
+        remove(new QueryWrapper<Sign>().eq("user_id", userId)
+                .eq("year", month.getYear()).eq("month", month.getMonthValue()));
+        saveBatch(signs);
+        return signs.size();
+    }
+
+    /**
+     * 已经结束的月份的签到记录：位图还在redis中直接取，位图归档后已经过期时按idx_user_month查tb_sign
+     * 格式和monthBits相同，第一天在最高位
+     */
+    private long archivedMonthBits(Long userId, YearMonth month) {
+        int days = month.lengthOfMonth();
+        long bits = monthBits(userId, month, days);
+        //位图存在时至少有一天签到，不会是0
+        if (bits != 0 || Boolean.TRUE.equals(stringRedisTemplate.hasKey(signKey(userId, month)))) {
+            return bits;
+        }
+        List<Sign> signs = query().select("date").eq("user_id", userId)
+                .eq("year", month.getYear()).eq("month", month.getMonthValue()).list();
+        for (Sign sign : signs) {
+            bits |= 1L << (days - sign.getDate().getDayOfMonth());
+        }
+        return bits;
+    }
+
+    /**
+     * bitfield key get u{days} 0，取出这个月前days天的签到记录，第一天在最高位，key不存在时为0
+     */
+    private long monthBits(Long userId, YearMonth month, int days) {
+        if (days <= 0) {
+            return 0;
+        }
+        List<Long> result = stringRedisTemplate.opsForValue().bitField(signKey(userId, month),
+                BitFieldSubCommands.create().get(BitFieldSubCommands.BitFieldType.unsigned(days)).valueAt(0));
+        if (result == null || result.isEmpty() || result.get(0) == null) {
+            return 0;
+        }
+        return result.get(0);
+    }
+}
@@ -1,9 +1,8 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
-import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -11,7 +10,10 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheBloomFilters;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.LoginTokenService;
 import lombok.experimental.FieldNameConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
@@ -21,9 +23,10 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -44,6 +47,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
      */
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheBloomFilters cacheBloomFilters;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private LoginTokenService loginTokenService;
 
 
     /**
@@ -150,24 +159,49 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         if (user == null){
             user  = createUserWithPhone(phone);
         }
-        //6.保存用户信息到redis
-        //6.1生成token，作为登陆令牌（用户数据的key）
-        String token = UUID.randomUUID().toString(true);
-        //6.2将user数据转为hashMap    将map内数据都转为string类型 防止 stringRedisTemplate报错
+        //6.生成登录token（redis模式：用户信息存在redis中；signed模式：用户信息签名在token中）
         UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO,new HashMap<>(),
-                CopyOptions.create()
-                        .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName,fieldValue) -> fieldValue.toString() ));
-        //存储为hash
-        String tokenKey = LOGIN_USER_TOKEN + token;
-        stringRedisTemplate.opsForHash().putAll(tokenKey,userMap);
-        //给token设置有效期(要在拦截器中更新token有效期，防止在使用中过期)
-        stringRedisTemplate.expire(tokenKey,LOGIN_USER_TTL,TimeUnit.MINUTES);
-        //7.将token返回给客户端s
+        String token = loginTokenService.issue(userDTO);
+        //7.将token返回给客户端
         return Result.ok(token);
     }
 
+    /**
+     * 登出：token立即失效，所有实例清除本地会话缓存/加入吊销列表
+     */
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isNotBlank(token)) {
+            loginTokenService.revoke(token);
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 续期token，signed模式下token过期后用它换一个新token
+     */
+    @Override
+    public Result refreshToken(String token) {
+        String newToken = StrUtil.isBlank(token) ? null : loginTokenService.refresh(token);
+        if (newToken == null) {
+            return Result.fail("登录已过期，请重新登录！");
+        }
+        return Result.ok(newToken);
+    }
+
+    /**
+     * 批量查询用户公开信息（昵称、头像），走缓存，未命中的用户一次in查询
+     * @param ids
+     * @return userId -> UserDTO
+     */
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        return cacheClient.multiGet(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class), (a, b) -> a)),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     /**
      *创建新用户 保存到数据库 并返回一个User对象
      * @param phone
@@ -180,6 +214,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(USER_NICK_NAME_PREFIX+RandomUtil.randomString(10));
         //2.保存用户（mbp）
         save(user);
+        //3.加入布隆过滤器
+        cacheBloomFilters.put(CACHE_USER_KEY, user.getId());
         return user;
     }
 }
@@ -1,36 +1,46 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
-import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdWorker;
+import com.hmdp.utils.SeckillShardUtils;
+import com.hmdp.utils.SeckillSoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.LOCK_ORDER_PREFIX;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -47,15 +57,46 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdWorker idWorker;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
     /**
-     * 代理对象 在主线成初始化
+     * 代理对象（注入自身的代理，消费者线程中拿不到AopContext里的代理对象）
      */
-    IVoucherService proxy;
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    /**
+     * 每个实例的消费者数量
+     */
+    @Value("${hmdp.seckill.consumer.count:4}")
+    private int consumerCount;
+    /**
+     * 每次xreadgroup读取的消息条数
+     */
+    @Value("${hmdp.seckill.consumer.batch-size:50}")
+    private int batchSize;
+    @Value("${server.port:8081}")
+    private int serverPort;
+    /**
+     * 秒杀库存分片数，秒杀进行中不能修改
+     */
+    @Value("${hmdp.seckill.stock-shards:4}")
+    private int stockShards;
+    /**
+     * pending list 恢复任务的执行间隔、认领的最小空闲时间、单次认领条数、最大投递次数
+     */
+    @Value("${hmdp.seckill.recovery.interval-seconds:5}")
+    private long recoveryIntervalSeconds;
+    @Value("${hmdp.seckill.recovery.min-idle-seconds:30}")
+    private long recoveryMinIdleSeconds;
+    @Value("${hmdp.seckill.recovery.batch-size:100}")
+    private long recoveryBatchSize;
+    @Value("${hmdp.seckill.recovery.max-deliveries:5}")
+    private long recoveryMaxDeliveries;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
@@ -63,12 +104,23 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setLocation(new ClassPathResource("secKill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
     }
+    private static final DefaultRedisScript<Long> SECKILL_SIBLING_SCRIPT;
+    static {
+        SECKILL_SIBLING_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SIBLING_SCRIPT.setLocation(new ClassPathResource("secKillSibling.lua"));
+        SECKILL_SIBLING_SCRIPT.setResultType(Long.class);
+    }
 
 
     /**
-     * 处理秒杀订单的线程池（性能要求不高给一个线程就可以）
+     * 处理秒杀订单的线程池，每个线程是消费者组里的一个消费者
      */
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+    /**
+     * pending list 恢复任务，单独的线程，不阻塞消费者
+     */
+    private ScheduledExecutorService pendingOrderRecoveryExecutor;
+    private volatile boolean running = true;
 
     /**
      * 前置处理器
@@ -76,73 +128,302 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //每个库存分片一个订单队列
+        List<String> streamKeys = SeckillShardUtils.streamKeys(stockShards);
+        streamKeys.forEach(this::createConsumerGroup);
+        //消费者名称 主机名:端口-c序号，同一实例重启后沿用原来的名字，可以接着处理自己pending list中的消息
+        String consumerPrefix = getLocalHostName() + ":" + serverPort + "-c";
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount, new NamedThreadFactory("seckill-order-", false));
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + i, assignStreams(streamKeys, i)));
+        }
+        pendingOrderRecoveryExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-order-recovery-", true));
+        pendingOrderRecoveryExecutor.scheduleWithFixedDelay(new PendingOrderRecoveryHandler(consumerPrefix + "r", streamKeys),
+                recoveryIntervalSeconds, recoveryIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        pendingOrderRecoveryExecutor.shutdownNow();
+        seckillOrderExecutor.shutdown();
+        //最多等待一个block周期，让正在处理的批次完成ack
+        seckillOrderExecutor.awaitTermination(3, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 分配消费者读取的订单队列
+     * 消费者不少于队列时，每个消费者读一个队列（多个消费者共享一个队列）；否则每个消费者轮流读多个队列
+     */
+    private List<String> assignStreams(List<String> streamKeys, int consumerIndex) {
+        if (consumerCount >= streamKeys.size()) {
+            return Collections.singletonList(streamKeys.get(consumerIndex % streamKeys.size()));
+        }
+        List<String> assigned = new ArrayList<>();
+        for (int i = consumerIndex; i < streamKeys.size(); i += consumerCount) {
+            assigned.add(streamKeys.get(i));
+        }
+        return assigned;
+    }
+
+    /**
+     * 创建消费者组 xgroup create stream.orders:{n} g1 0 mkstream，已存在时redis返回BUSYGROUP，忽略即可
+     */
+    private void createConsumerGroup(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    "CREATE".getBytes(StandardCharsets.UTF_8),
+                    streamKey.getBytes(StandardCharsets.UTF_8),
+                    SECKILL_ORDER_GROUP.getBytes(StandardCharsets.UTF_8),
+                    "0".getBytes(StandardCharsets.UTF_8),
+                    "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            log.debug("{}的消费者组{}已存在", streamKey, SECKILL_ORDER_GROUP);
+        }
     }
+
+    private static String getLocalHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString(true).substring(0, 8);
+        }
+    }
+
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        private final String consumerName;
+        private final List<String> streamKeys;
+        /**
+         * 每个队列的阻塞时间，读多个队列时分摊2秒，避免一个空队列拖慢其他队列
+         */
+        private final Duration block;
+
+        VoucherOrderHandler(String consumerName, List<String> streamKeys) {
+            this.consumerName = consumerName;
+            this.streamKeys = streamKeys;
+            this.block = Duration.ofMillis(2000 / streamKeys.size());
+        }
+
         /**
          * 执行异步下单
-         * 获取消息队列中的信息，执行
+         * 批量获取消息队列中的信息，批量下单，一次ack
+         * 不同分片的队列可能在cluster的不同slot，不能在一条xreadgroup中读，逐个队列读取
          */
         @Override
         public void run() {
-            while (true){
+            while (running){
+                for (String streamKey : streamKeys) {
+                    consume(streamKey);
+                }
+            }
+        }
+
+        private void consume(String streamKey) {
+            List<MapRecord<String, Object, Object>> list = null;
+            try {
+                //1.获取消息队列中的订单信息 xreadgroup group g1 cX(消费者) count K block 2000 streams stream.orders:{n} >
+                list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize).block(block),
+                        StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+                );
+                //2.判断消息是否获取成功
+                if (list == null || list.isEmpty()){
+                    //2.1获取失败说明没有消息，读下一个队列
+                    return;
+                }
+                //2.2获取成功，批量下单并ack
+                handleVoucherOrders(streamKey, list);
+            }  catch (Exception e) {
+                log.error("处理订单异常",e);
+                //出现异常，就没有ack记录，消息留在pending list中，由PendingOrderRecoveryHandler认领重试，这里继续消费新消息
+                recordFailure(list, e);
+            }
+        }
+    }
+
+    /**
+     * pending list 恢复任务
+     * 用xpending找出空闲超过minIdle的消息（不区分消费者，宕机实例的消息也能被接管），xclaim到恢复消费者名下重试，
+     * 投递次数超过上限的消息连同失败原因转入死信队列，避免毒消息一直卡在pending list中
+     */
+    private class PendingOrderRecoveryHandler implements Runnable{
+        private final String consumerName;
+        private final List<String> streamKeys;
+
+        PendingOrderRecoveryHandler(String consumerName, List<String> streamKeys) {
+            this.consumerName = consumerName;
+            this.streamKeys = streamKeys;
+        }
+
+        @Override
+        public void run() {
+            for (String streamKey : streamKeys) {
                 try {
-                    //1.获取消息队列中的订单信息 xreadgroup group g1 c1(消费者) count 1 block 2000 streams stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //2.判断消息是否获取成功
-                    if (list == null || list.isEmpty()){
-                        //2.1获取失败说明没有消息，进行下一次循环
-                        continue;
-                    }
-                    //2.2获取成功，解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //2.3获取成功，下单
-                    handleVoucherOrder(voucherOrder);
-                    //3.ack确认  sack stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                }  catch (Exception e) {
-                    log.error("处理订单异常",e);
-                    //出现异常，就没有ack记录，消息进入pending list，到pending list取出消息进行上面逻辑，确保完成下单
-                    while (true){
-                        try {
-                            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                                    Consumer.from("g1", "c1"),
-                                    StreamReadOptions.empty().count(1),
-                                    StreamOffset.create(queueName, ReadOffset.from("0"))
-                            );
-                            if (list == null || list.isEmpty()){
-                                //没有读取到，说明pending list中没有消息，直接跳出这一层循环
-                              break;
-                            }
-                            MapRecord<String, Object, Object> record = list.get(0);
-                            Map<Object, Object> value = record.getValue();
-                            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                            //2.3获取成功，下单
-                            handleVoucherOrder(voucherOrder);
-                            //3.ack确认  sack stream.orders g1 id
-                            stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                        } catch (Exception ex) {
-                            //再次出现异常，继续循环
-                            log.error("pending list 出现异常",ex);
-                            //防止频繁抛异常，休眠一下再继续
-                            try {
-                                Thread.sleep(20);
-                            } catch (InterruptedException exc) {
-                                throw new RuntimeException(exc);
-                            }
-                        }
+                    recoverPendingOrders(streamKey);
+                } catch (Exception e) {
+                    log.error("{} pending list 恢复异常", streamKey, e);
+                }
+            }
+        }
+
+        private void recoverPendingOrders(String streamKey) {
+            //1.xpending stream.orders:{n} g1 - + count
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                    .pending(streamKey, SECKILL_ORDER_GROUP, Range.unbounded(), recoveryBatchSize);
+            if (pendingMessages.isEmpty()) {
+                return;
+            }
+            //2.只认领空闲足够久的消息，正在被消费者处理的消息不动
+            Duration minIdle = Duration.ofSeconds(recoveryMinIdleSeconds);
+            Map<RecordId, PendingMessage> idleMessages = new LinkedHashMap<>();
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                    idleMessages.put(pendingMessage.getId(), pendingMessage);
+                }
+            }
+            if (idleMessages.isEmpty()) {
+                return;
+            }
+            //3.xclaim 带min-idle-time，多个实例同时恢复时只有一个能认领成功
+            List<MapRecord<String, Object, Object>> claimed = stringRedisTemplate.opsForStream().claim(
+                    streamKey, SECKILL_ORDER_GROUP, consumerName, minIdle,
+                    idleMessages.keySet().toArray(new RecordId[0]));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            //4.超过投递次数上限的进入死信队列，其余重试
+            List<MapRecord<String, Object, Object>> retries = new ArrayList<>(claimed.size());
+            for (MapRecord<String, Object, Object> record : claimed) {
+                PendingMessage pendingMessage = idleMessages.get(record.getId());
+                if (pendingMessage != null && pendingMessage.getTotalDeliveryCount() >= recoveryMaxDeliveries) {
+                    deadLetter(streamKey, record, pendingMessage);
+                } else {
+                    retries.add(record);
+                }
+            }
+            if (retries.isEmpty()) {
+                return;
+            }
+            try {
+                handleVoucherOrders(streamKey, retries);
+                clearFailure(retries);
+            } catch (Exception e) {
+                //整批失败，逐条重试，把毒消息隔离出来
+                for (MapRecord<String, Object, Object> record : retries) {
+                    List<MapRecord<String, Object, Object>> single = Collections.singletonList(record);
+                    try {
+                        handleVoucherOrders(streamKey, single);
+                        clearFailure(single);
+                    } catch (Exception ex) {
+                        log.error("pending list 订单{}重试失败", record.getId(), ex);
+                        recordFailure(single, ex);
                     }
                 }
+            }
+        }
+
+        /**
+         * 转入死信队列 xadd stream.orders.dlq * ...原消息字段 reason ...，再ack原消息
+         */
+        private void deadLetter(String streamKey, MapRecord<String, Object, Object> record, PendingMessage pendingMessage) {
+            String failureKey = failureKey(record);
+            Object reason = stringRedisTemplate.opsForHash().get(SECKILL_ORDER_FAILURE_KEY, failureKey);
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("stream", streamKey);
+            value.put("originalId", record.getId().getValue());
+            value.put("consumer", pendingMessage.getConsumerName());
+            value.put("deliveries", String.valueOf(pendingMessage.getTotalDeliveryCount()));
+            value.put("reason", reason == null ? "超过最大投递次数" : reason.toString());
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, value);
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, record.getId());
+            stringRedisTemplate.opsForHash().delete(SECKILL_ORDER_FAILURE_KEY, failureKey);
+            log.error("订单消息{}投递{}次仍失败，已转入死信队列", failureKey, pendingMessage.getTotalDeliveryCount());
+        }
+    }
+
+    /**
+     * 记录失败原因，消息进入死信队列时一并带上（存在redis中，接管消息的可能是其他实例）
+     */
+    private void recordFailure(List<MapRecord<String, Object, Object>> records, Exception e) {
+        if (records == null || records.isEmpty()) {
+            return;
+        }
+        String reason = e.getClass().getSimpleName() + ": " + e.getMessage();
+        Map<String, String> failures = new HashMap<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            failures.put(failureKey(record), reason);
+        }
+        try {
+            stringRedisTemplate.opsForHash().putAll(SECKILL_ORDER_FAILURE_KEY, failures);
+        } catch (Exception ex) {
+            log.error("记录订单失败原因异常", ex);
+        }
+    }
+
+    private void clearFailure(List<MapRecord<String, Object, Object>> records) {
+        Object[] failureKeys = records.stream().map(VoucherOrderServiceImpl::failureKey).toArray();
+        stringRedisTemplate.opsForHash().delete(SECKILL_ORDER_FAILURE_KEY, failureKeys);
+    }
+
+    /**
+     * 不同分片队列的消息id可能相同，失败原因用 队列key/消息id 区分
+     */
+    private static String failureKey(MapRecord<String, Object, Object> record) {
+        return record.getStream() + "/" + record.getId().getValue();
+    }
+
+    /**
+     * 批量处理订单：一个事务落库，一次xack确认整批消息
+     * @param streamKey 订单队列
+     * @param records 消息队列中的订单消息
+     */
+    private void handleVoucherOrders(String streamKey, List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        RecordId[] recordIds = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            MapRecord<String, Object, Object> record = records.get(i);
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            recordIds[i] = record.getId();
+        }
+        //订单id在通过资格校验后才生成，整批一次incrby，被拒绝的下单请求不再消耗生成id的redis调用
+        assignOrderIds(voucherOrders);
+        //这是一个新线程，不能再从UserHolder中获取用户id，订单里已经带了userId
+        //一人一单已经由lua脚本在redis中原子保证，这里不再逐个用户加分布式锁，落库时在事务里按(user_id,voucher_id)去重兜底
+        try {
+            proxy.createVoucherOrders(voucherOrders);
+        } catch (DuplicateKeyException e) {
+            //消息被认领重试时原消费者可能还在提交，查询去重之后仍会撞上唯一索引，整批已回滚，逐条落库
+            log.warn("批量创建订单遇到重复订单，逐条重试");
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                try {
+                    proxy.createVoucherOrder(voucherOrder);
+                } catch (DuplicateKeyException ex) {
+                    //订单已经存在，视为已处理
+                    log.info("用户{}的秒杀券{}订单已存在", voucherOrder.getUserId(), voucherOrder.getVoucherId());
                 }
             }
         }
+        //3.ack确认  xack stream.orders:{n} g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, recordIds);
+    }
+
+    /**
+     * 给还没有id的订单批量生成id（兼容旧消息中自带的订单id）
+     * 消息重复投递时会拿到新的id，落库时按(user_id,voucher_id)去重，不会重复下单
+     */
+    private void assignOrderIds(List<VoucherOrder> voucherOrders) {
+        List<VoucherOrder> withoutId = voucherOrders.stream()
+                .filter(voucherOrder -> voucherOrder.getId() == null)
+                .collect(Collectors.toList());
+        if (withoutId.isEmpty()) {
+            return;
+        }
+        long[] orderIds = idWorker.nextIds("order", withoutId.size());
+        for (int i = 0; i < withoutId.size(); i++) {
+            withoutId.get(i).setId(orderIds[i]);
+        }
+    }
 
 //    /**
 //     * 阻塞队列
@@ -172,35 +453,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    /**
-     * 处理订单
-     * @param voucherOrder
-     */
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //这是一个新线程，不能再从UserHolder中获取用户id
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象（不同用户获取不同的锁，用userId做标识）
-//      SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        RLock lock = redissonClient.getLock(LOCK_ORDER_PREFIX + userId);
-        //使用redisson提供的锁
-//        boolean isLock = lock.tryLock(REDIS_LOCK_TTL);
-        boolean isLock = lock.tryLock();
-
-        if (isLock) {
-            //获取锁失败 异步处理 不用再返回信息给前端
-            log.error("获取锁失败，不允许重复下单");
-            return;
-        }
-        try {
-            //提前在主线程获取代理对象(是通过ThreadLocal获取的，这是一个新线程，拿不到代理对象)
-//            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            //释放锁
-            lock.unlock();
-        }
-    }
-
     /**
      * 秒杀下单
      */
@@ -308,33 +560,73 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result secKillOrder(Long voucherId) {
-        //获取用户
+        //已经售罄的券直接在本地返回，不访问redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //获取用户（订单id由消费者在落库前批量生成，这里只做资格校验）
         Long userId = UserHolder.getUser().getId();
-        //获取订单id
-        long orderId = redisIdWorker.nextId("order");
-        //1.执行lua脚本
+        //1.在用户所属分片执行lua脚本（判断一人一单并占位、扣库存）
+        int homeShard = SeckillShardUtils.homeShard(userId, stockShards);
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
-                //第二个参数是需要的key（一个集合），但是脚本中没有key类型参数，给一个空集合
-                Collections.emptyList(),
-                //其他类型参数（args）,要字符串形式，有三个
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
+                Arrays.asList(SeckillShardUtils.stockKey(voucherId, homeShard),
+                        SeckillShardUtils.orderKey(voucherId, homeShard),
+                        SeckillShardUtils.streamKey(homeShard)),
+                //其他类型参数（args）,要字符串形式，有两个
+                voucherId.toString(), userId.toString()
         );
         int r = result.intValue();
-        //2.判断结果是否为0，不为0返回异常信息
+        //2.所属分片库存不足，依次到其他分片扣库存
+        if (r == 1) {
+            seckillSoldOutRegistry.markShardEmpty(voucherId, homeShard);
+            if (deductFromSiblingShards(voucherId, userId, homeShard)) {
+                r = 0;
+            }
+        }
+        //3.判断结果是否为0，不为0返回异常信息
         if (r != 0){
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
-
-
-        //4.获取代理对象
-        proxy = (IVoucherService) AopContext.currentProxy();
-
-
         return Result.ok();
     }
 
+    /**
+     * 到其他分片扣库存（跳过已知没有库存的分片），都没有库存时移除用户在所属分片的占位，并标记售罄
+     * @return true扣减成功
+     */
+    private boolean deductFromSiblingShards(Long voucherId, Long userId, int homeShard) {
+        boolean deducted = false;
+        try {
+            for (int i = 1; i < stockShards; i++) {
+                int shard = (homeShard + i) % stockShards;
+                if (seckillSoldOutRegistry.isShardEmpty(voucherId, shard)) {
+                    continue;
+                }
+                Long result = stringRedisTemplate.execute(
+                        SECKILL_SIBLING_SCRIPT,
+                        Arrays.asList(SeckillShardUtils.stockKey(voucherId, shard), SeckillShardUtils.streamKey(shard)),
+                        voucherId.toString(), userId.toString()
+                );
+                if (result != null && result == 0) {
+                    deducted = true;
+                    return true;
+                }
+                seckillSoldOutRegistry.markShardEmpty(voucherId, shard);
+            }
+            //所有分片都没有库存了（库存只减不增），标记售罄
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+            return false;
+        } finally {
+            //没有扣减成功（包括访问其他分片超时、故障转移时抛出异常），移除用户在所属分片的占位，用户可以重试
+            if (!deducted) {
+                stringRedisTemplate.opsForSet().remove(SeckillShardUtils.orderKey(voucherId, homeShard), userId.toString());
+            }
+        }
+    }
+
 
+    @Override
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
         //一人一单逻辑   判断订单是否存在（防止一人多个订单）
@@ -385,4 +677,74 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        return Result.ok(orderId);
 
     }
+
+    /**
+     * 批量创建订单
+     * 同一张券的订单合并成一条扣库存的update，订单用saveBatch批量插入
+     * @param voucherOrders 一批订单
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //1.一人一单：批次内去重，再剔除数据库中已经存在的(user_id,voucher_id)（消息重复投递时会出现）
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>(voucherOrders.size());
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        List<VoucherOrder> existed = query()
+                .select("user_id", "voucher_id")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        for (VoucherOrder voucherOrder : existed) {
+            if (orderMap.remove(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId()) != null) {
+                log.error("用户{}已经购买过秒杀券{}，一个用户限购一张", voucherOrder.getUserId(), voucherOrder.getVoucherId());
+            }
+        }
+        if (orderMap.isEmpty()) {
+            return;
+        }
+
+        //2.按券分组减库存，每张券一条update
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        List<VoucherOrder> toSave = new ArrayList<>(orderMap.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            int count = orders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    //where 库存够扣整批才更新 防止超卖
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            if (success) {
+                toSave.addAll(orders);
+                continue;
+            }
+            //库存不够整批扣减，退化为逐条扣减，能扣多少下多少单
+            for (VoucherOrder order : orders) {
+                boolean decreased = seckillVoucherService.update()
+                        .setSql("stock = stock - 1")
+                        .eq("voucher_id", voucherId)
+                        .gt("stock", 0)
+                        .update();
+                if (!decreased) {
+                    log.error("秒杀券{}库存不足，订单{}未创建", voucherId, order.getId());
+                    continue;
+                }
+                toSave.add(order);
+            }
+        }
+
+        //3.批量写入订单
+        if (!toSave.isEmpty()) {
+            saveBatch(toSave);
+        }
+    }
 }
@@ -8,6 +8,9 @@ import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillShardUtils;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -15,8 +18,6 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -33,6 +34,14 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    /**
+     * 秒杀库存分片数，和下单时保持一致
+     */
+    @Value("${hmdp.seckill.stock-shards:4}")
+    private int stockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -60,8 +69,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        //保存优惠券信息到redis（异步下单优化,需要秒杀券库存）
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        //保存优惠券库存到redis（异步下单优化,需要秒杀券库存），库存拆到多个分片，分散热点key
+        int[] shardStocks = SeckillShardUtils.splitStock(voucher.getStock(), stockShards);
+        for (int shard = 0; shard < shardStocks.length; shard++) {
+            stringRedisTemplate.opsForValue().set(SeckillShardUtils.stockKey(voucher.getId(), shard), String.valueOf(shardStocks[shard]));
+        }
+        //有了新库存，清除各实例的售罄标记
+        seckillSoldOutRegistry.reset(voucher.getId());
     }
 
     @Override
@@ -0,0 +1,166 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFollowService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 发布博文后的feed推送（推拉结合）
+ * 每篇博文都写入作者的发件箱 feed:out:{userId}；粉丝不超过阈值的作者再异步推送到每个粉丝的收件箱 feed:{userId}，
+ * 粉丝超过阈值、推送队列满了或者推送失败的作者记入大V集合，不推送，粉丝读取feed时从大V的发件箱拉取；
+ * 之后粉丝数不超过阈值的一次推送把改为拉模式以来发件箱中的博文补推给粉丝，再移出大V集合
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class BlogFeedFanout {
+    private static final DefaultRedisScript<Long> DEMOTE_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTORE_SCRIPT;
+    static {
+        DEMOTE_SCRIPT = new DefaultRedisScript<>();
+        DEMOTE_SCRIPT.setLocation(new ClassPathResource("feedDemote.lua"));
+        DEMOTE_SCRIPT.setResultType(Long.class);
+        RESTORE_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_SCRIPT.setLocation(new ClassPathResource("feedRestore.lua"));
+        RESTORE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IFollowService followService;
+
+    /**
+     * 粉丝数超过该值的作者不推送，改为读时拉取
+     */
+    @Value("${hmdp.feed.push-threshold:5000}")
+    private int pushThreshold;
+    /**
+     * 收件箱、发件箱最多保留的博文数
+     */
+    @Value("${hmdp.feed.max-size:1000}")
+    private long maxSize;
+    @Value("${hmdp.feed.fanout.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.feed.fanout.threads:2}")
+    private int threads;
+    @Value("${hmdp.feed.fanout.queue-capacity:1000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor fanoutExecutor;
+
+    @PostConstruct
+    private void init() {
+        fanoutExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new NamedThreadFactory("feed-fanout-", false),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        fanoutExecutor.shutdown();
+        fanoutExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 发布博文：同步写发件箱，推送收件箱在后台执行，不阻塞发布
+     */
+    public void publish(Long authorId, Long blogId, long timestamp) {
+        //1.写入作者发件箱，推送失败或者大V的粉丝都从这里拉取
+        String outboxKey = FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.opsForZSet().add(outboxKey, blogId.toString(), timestamp);
+        stringRedisTemplate.opsForZSet().removeRange(outboxKey, 0, -maxSize - 1);
+        //2.异步推送到粉丝收件箱
+        try {
+            fanoutExecutor.execute(() -> fanout(authorId, blogId, timestamp));
+        } catch (RejectedExecutionException e) {
+            //推送队列满了，这个作者暂时改为读时拉取
+            log.warn("feed推送队列已满，作者{}改为拉模式", authorId);
+            demote(authorId, timestamp);
+        }
+    }
+
+    private void fanout(Long authorId, Long blogId, long timestamp) {
+        try {
+            //1.粉丝太多，记为大V，不推送
+            int followers = followService.query().eq("follow_user_id", authorId).count();
+            if (followers > pushThreshold) {
+                demote(authorId, timestamp);
+                return;
+            }
+            //2.要推送的博文：平时只有这一篇；作者之前改为了拉模式，补上从那时起发件箱中的所有博文
+            String author = authorId.toString();
+            Set<ZSetOperations.TypedTuple<String>> entries;
+            String version = null;
+            if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FEED_BIG_AUTHOR_KEY, author))) {
+                List<Object> pullState = stringRedisTemplate.opsForHash().multiGet(FEED_PULL_SINCE_KEY, Arrays.asList(author, author + ":v"));
+                double since = pullState.get(0) == null ? 0 : Double.parseDouble(pullState.get(0).toString());
+                version = pullState.get(1) == null ? "" : pullState.get(1).toString();
+                entries = stringRedisTemplate.opsForZSet().rangeByScoreWithScores(FEED_OUTBOX_KEY + authorId, since, Double.MAX_VALUE);
+            } else {
+                entries = Collections.singleton(new DefaultTypedTuple<>(blogId.toString(), (double) timestamp));
+            }
+            //3.按id分页读取粉丝，每页一次管道写入收件箱
+            long lastId = 0;
+            while (true) {
+                List<Follow> page = followService.query().select("id", "user_id")
+                        .eq("follow_user_id", authorId).gt("id", lastId)
+                        .orderByAsc("id").last("limit " + batchSize).list();
+                if (page.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Follow follow : page) {
+                        byte[] inboxKey = (FEED_KEY + follow.getUserId()).getBytes(StandardCharsets.UTF_8);
+                        for (ZSetOperations.TypedTuple<String> entry : entries) {
+                            connection.zAdd(inboxKey, entry.getScore(), entry.getValue().getBytes(StandardCharsets.UTF_8));
+                        }
+                        connection.zRemRange(inboxKey, 0, -maxSize - 1);
+                    }
+                    return null;
+                });
+                lastId = page.get(page.size() - 1).getId();
+            }
+            //4.补推完成，期间没有再次改为拉模式时移出大V集合
+            if (version != null) {
+                stringRedisTemplate.execute(RESTORE_SCRIPT, Arrays.asList(FEED_BIG_AUTHOR_KEY, FEED_PULL_SINCE_KEY), author, version);
+            }
+        } catch (Exception e) {
+            //推送失败的博文仍在发件箱中，作者暂时改为读时拉取，下次推送时补推
+            log.error("博文{}推送到粉丝收件箱失败，作者{}改为拉模式", blogId, authorId, e);
+            demote(authorId, timestamp);
+        }
+    }
+
+    /**
+     * 作者改为拉模式，记下第一篇没有推送的博文时间，恢复推模式时从这里开始补推
+     */
+    private void demote(Long authorId, long timestamp) {
+        stringRedisTemplate.execute(DEMOTE_SCRIPT, Arrays.asList(FEED_BIG_AUTHOR_KEY, FEED_PULL_SINCE_KEY),
+                authorId.toString(), String.valueOf(timestamp));
+    }
+}
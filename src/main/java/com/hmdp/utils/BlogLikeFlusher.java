@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.Blog;
+import com.hmdp.service.IBlogService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 点赞数写回数据库
+ * 点赞只写redis（点赞用户集合 + 点赞数hash），被点赞的博文记入待刷盘集合；定时把待刷盘集合rename成刷盘中集合，
+ * 读取这批博文的点赞数，批量 update tb_blog set liked = ? ，写完删除刷盘中集合
+ * 写的是点赞数的绝对值，实例在刷盘中途崩溃后，下次重新刷同一批也不会重复计数
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class BlogLikeFlusher {
+    private static final DefaultRedisScript<List> FLUSH_TAKE_SCRIPT;
+    static {
+        FLUSH_TAKE_SCRIPT = new DefaultRedisScript<>();
+        FLUSH_TAKE_SCRIPT.setLocation(new ClassPathResource("blogLikeFlushTake.lua"));
+        FLUSH_TAKE_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IBlogService blogService;
+
+    @Value("${hmdp.blog.like.flush-interval-seconds:5}")
+    private long flushIntervalSeconds;
+    @Value("${hmdp.blog.like.batch-size:500}")
+    private int batchSize;
+
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    private void init() {
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("blog-like-flush-", true));
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        flushExecutor.shutdown();
+        flushExecutor.awaitTermination(flushIntervalSeconds, TimeUnit.SECONDS);
+        //关闭前再刷一次，没刷完的留在redis中由其他实例或者下次启动刷
+        flush();
+    }
+
+    /**
+     * 刷一批点赞数，同一时间只有一个实例在刷
+     */
+    public void flush() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_BLOG_LIKED_FLUSH_KEY, "1", 1, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        try {
+            //1.取出待刷盘的博文
+            @SuppressWarnings("unchecked")
+            List<String> blogIds = stringRedisTemplate.execute(FLUSH_TAKE_SCRIPT,
+                    Arrays.asList(BLOG_LIKED_DIRTY_KEY, BLOG_LIKED_FLUSHING_KEY));
+            if (blogIds == null || blogIds.isEmpty()) {
+                return;
+            }
+            //2.分批读取点赞数，批量写回数据库
+            for (int from = 0; from < blogIds.size(); from += batchSize) {
+                List<String> batch = blogIds.subList(from, Math.min(from + batchSize, blogIds.size()));
+                List<Object> counts = stringRedisTemplate.opsForHash().multiGet(BLOG_LIKED_COUNT_KEY, new ArrayList<>(batch));
+                List<Blog> blogs = new ArrayList<>(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    Object count = counts.get(i);
+                    if (count != null) {
+                        blogs.add(new Blog().setId(Long.valueOf(batch.get(i))).setLiked(Integer.valueOf(count.toString())));
+                    }
+                }
+                blogService.updateBatchById(blogs, batchSize);
+            }
+            //3.全部写完才删除，期间的新点赞已经记在新的待刷盘集合里
+            stringRedisTemplate.delete(BLOG_LIKED_FLUSHING_KEY);
+            log.debug("点赞数写回数据库，博文{}篇", blogIds.size());
+        } catch (Exception e) {
+            log.error("点赞数写回数据库失败，下次重试", e);
+        } finally {
+            stringRedisTemplate.delete(LOCK_BLOG_LIKED_FLUSH_KEY);
+        }
+    }
+}
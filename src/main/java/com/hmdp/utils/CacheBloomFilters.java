@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存key前缀 -> 布隆过滤器，防止缓存穿透
+ * 启动时从redis加载位图，redis中没有时从数据库全量构建；之后定时重建，去掉已删除的id
+ * 过滤器准备好之前一律放行
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class CacheBloomFilters {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ShopMapper shopMapper;
+    private final UserMapper userMapper;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+    /**
+     * 误判率
+     */
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+    @Value("${hmdp.bloom.shop-expected-insertions:100000}")
+    private long shopExpectedInsertions;
+    @Value("${hmdp.bloom.user-expected-insertions:1000000}")
+    private long userExpectedInsertions;
+    @Value("${hmdp.bloom.rebuild-interval-hours:24}")
+    private long rebuildIntervalHours;
+    @Value("${hmdp.bloom.page-size:1000}")
+    private int pageSize;
+
+    private final Map<String, Guard> guards = new ConcurrentHashMap<>();
+    private ScheduledExecutorService bloomExecutor;
+
+    public CacheBloomFilters(StringRedisTemplate stringRedisTemplate, ShopMapper shopMapper, UserMapper userMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shopMapper = shopMapper;
+        this.userMapper = userMapper;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        guards.put(CACHE_SHOP_KEY, new Guard(
+                new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP_KEY, shopExpectedInsertions, fpp),
+                lastId -> shopMapper.selectList(new QueryWrapper<Shop>().select("id").gt("id", lastId).orderByAsc("id").last("limit " + pageSize))
+                        .stream().map(Shop::getId).collect(Collectors.toList())));
+        guards.put(CACHE_USER_KEY, new Guard(
+                new RedisBloomFilter(stringRedisTemplate, BLOOM_USER_KEY, userExpectedInsertions, fpp),
+                lastId -> userMapper.selectList(new QueryWrapper<User>().select("id").gt("id", lastId).orderByAsc("id").last("limit " + pageSize))
+                        .stream().map(User::getId).collect(Collectors.toList())));
+        bloomExecutor = Executors.newScheduledThreadPool(2, new NamedThreadFactory("bloom-filter-", true));
+        guards.forEach((keyPrefix, guard) -> {
+            bloomExecutor.execute(() -> prepare(keyPrefix, guard));
+            bloomExecutor.scheduleWithFixedDelay(() -> rebuild(keyPrefix, guard), rebuildIntervalHours, rebuildIntervalHours, TimeUnit.HOURS);
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (bloomExecutor != null) {
+            bloomExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 该缓存前缀下的id是否可能存在，没有过滤器或者过滤器还没准备好时返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Guard guard = guards.get(keyPrefix);
+        if (guard == null || !guard.ready) {
+            return true;
+        }
+        try {
+            return guard.filter.mightContain(id);
+        } catch (Exception e) {
+            //redis异常时放行，交给后面的缓存和数据库
+            log.error("布隆过滤器{}查询失败", keyPrefix, e);
+            return true;
+        }
+    }
+
+    /**
+     * 新增数据后加入布隆过滤器
+     */
+    public void put(String keyPrefix, Object id) {
+        Guard guard = guards.get(keyPrefix);
+        if (guard != null) {
+            guard.filter.put(id);
+        }
+    }
+
+    /**
+     * 启动时准备过滤器：redis中已有位图则直接加载，否则抢锁全量构建，没抢到就等其他实例构建完
+     */
+    private void prepare(String keyPrefix, Guard guard) {
+        try {
+            while (!guard.ready) {
+                if (guard.filter.load() || rebuildWithLock(keyPrefix, guard)) {
+                    guard.ready = true;
+                    log.info("布隆过滤器{}准备完成", keyPrefix);
+                    return;
+                }
+                TimeUnit.SECONDS.sleep(5);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("布隆过滤器{}准备失败，稍后重试", keyPrefix, e);
+            bloomExecutor.schedule(() -> prepare(keyPrefix, guard), 30, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 定时重建任务：只有一个实例重建，其他实例重新加载本地副本
+     */
+    private void rebuild(String keyPrefix, Guard guard) {
+        try {
+            if (!rebuildWithLock(keyPrefix, guard)) {
+                guard.filter.load();
+            }
+        } catch (Exception e) {
+            log.error("布隆过滤器{}重建失败", keyPrefix, e);
+        }
+    }
+
+    private boolean rebuildWithLock(String keyPrefix, Guard guard) {
+        String lockKey = LOCK_BLOOM_KEY + keyPrefix;
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", 10, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(locked)) {
+            return false;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            guard.filter.rebuild(guard.pageLoader);
+            log.info("布隆过滤器{}重建完成，耗时{}ms", keyPrefix, System.currentTimeMillis() - begin);
+            return true;
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    private static class Guard {
+        private final RedisBloomFilter filter;
+        private final Function<Long, List<Long>> pageLoader;
+        private volatile boolean ready;
+
+        Guard(RedisBloomFilter filter, Function<Long, List<Long>> pageLoader) {
+            this.filter = filter;
+            this.pageLoader = pageLoader;
+        }
+    }
+}
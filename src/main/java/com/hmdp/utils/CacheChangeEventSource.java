@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+import java.util.function.Consumer;
+
+/**
+ * 数据变更事件来源，产生需要删除的缓存key
+ * 目前是发件箱表轮询，之后可以换成订阅mysql binlog（如canal）
+ * @author qrpop
+ */
+public interface CacheChangeEventSource {
+    /**
+     * 开始产生事件，每个需要删除的缓存key回调一次（至少一次，可能重复）
+     */
+    void start(Consumer<String> keyHandler);
+
+    void stop();
+}
@@ -1,43 +1,168 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
 
 /**
  * @author qrpop
  * 封装redis工具类
+ * 两级缓存：caffeine本地缓存（一级）+ redis（二级），本地缓存过期时间比redis短，
+ * 删除缓存时通过redis发布订阅通知所有实例清除本地缓存
+ * 缓存未命中时同一个实例内同一个key只有一个线程去查数据库（single flight），其他线程等待它的结果
+ * 本地缓存放入和取出时都复制一份，返回给调用方的对象是它独有的，可以直接修改（比如填充距离、点赞状态）
  */
 @Component
 @Slf4j
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisTemplate<String, byte[]> byteRedisTemplate;
+    private final CacheValueSerializer cacheValueSerializer;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final MeterRegistry meterRegistry;
+    private final CacheBloomFilters cacheBloomFilters;
+    private final CacheRebuildExecutor cacheRebuildExecutor;
+    private final CacheRefreshAhead cacheRefreshAhead;
 
+    /**
+     * 本地缓存中代表空值的占位对象（caffeine不能存null）
+     */
+    private static final Object NULL_VALUE = new Object();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    /**
+     * 逻辑过期缓存的存储格式
+     * hash：exp字段存逻辑过期时间，data字段存数据；string：过期时间写在编码头部
+     */
+    @Value("${hmdp.cache.logical-expire-layout:hash}")
+    private String logicalExpireLayout;
+    private static final List<String> LOGICAL_FIELDS = Arrays.asList("exp", "data");
+    private static final DefaultRedisScript<Long> LOGICAL_EXPIRE_SET_SCRIPT;
+    static {
+        LOGICAL_EXPIRE_SET_SCRIPT = new DefaultRedisScript<>();
+        LOGICAL_EXPIRE_SET_SCRIPT.setLocation(new ClassPathResource("logicalExpireSet.lua"));
+        LOGICAL_EXPIRE_SET_SCRIPT.setResultType(Long.class);
     }
 
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localMaximumSize;
+    @Value("${hmdp.cache.local.ttl-seconds:30}")
+    private long localTtlSeconds;
+
+    /**
+     * 一级缓存 redis key -> 反序列化后的对象，只在本类中读写，对外只返回副本
+     */
+    private Cache<String, Object> localCache;
+
+    /**
+     * 正在重建的key -> 重建结果，同一个key的并发未命中共用一个future
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    /**
+     * 互斥锁被其他实例持有时，等待重建结果的次数和间隔
+     */
+    private static final int MUTEX_MAX_RETRIES = 20;
+    private static final long MUTEX_RETRY_MILLIS = 50;
+
+    private Counter l1Hit;
+    private Counter l1Miss;
+    private Counter l2Hit;
+    private Counter l2Miss;
+    private Counter coalesced;
+    private Counter bloomReject;
+
     /**
-     * 线程池
+     * 缓存空值，防止缓存穿透（旧格式的空字符串读出来也是空数组）
      */
-    private static final ExecutorService CACHE_REBUILD_EXCUTOR = Executors.newFixedThreadPool(10);
+    private static final byte[] EMPTY = new byte[0];
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> byteRedisTemplate,
+                       CacheValueSerializer cacheValueSerializer, RedisMessageListenerContainer redisMessageListenerContainer,
+                       MeterRegistry meterRegistry, CacheBloomFilters cacheBloomFilters, CacheRebuildExecutor cacheRebuildExecutor,
+                       CacheRefreshAhead cacheRefreshAhead) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.byteRedisTemplate = byteRedisTemplate;
+        this.cacheValueSerializer = cacheValueSerializer;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.meterRegistry = meterRegistry;
+        this.cacheBloomFilters = cacheBloomFilters;
+        this.cacheRebuildExecutor = cacheRebuildExecutor;
+        this.cacheRefreshAhead = cacheRefreshAhead;
+    }
+
+    @PostConstruct
+    private void init() {
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        l1Hit = cacheCounter("l1", "hit");
+        l1Miss = cacheCounter("l1", "miss");
+        l2Hit = cacheCounter("l2", "hit");
+        l2Miss = cacheCounter("l2", "miss");
+        coalesced = Counter.builder("hmdp.cache.coalesced").register(meterRegistry);
+        bloomReject = cacheCounter("bloom", "reject");
+        //其他实例删除缓存时，清除本实例的本地缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> localCache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    private Counter cacheCounter(String level, String result) {
+        return Counter.builder("hmdp.cache.requests")
+                .tag("level", level)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
 
     /**
-     * 将任意java对象序列化为json并存储在string类型的key
+     * 将任意java对象编码后存储在string类型的key
      * 并且可以设置TTL过期时间
      * @param key
      * @param value
@@ -45,29 +170,210 @@ public class CacheClient {
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        byteRedisTemplate.opsForValue().set(key, cacheValueSerializer.encode(value),time,unit);
     }
 
     /**
-     * 将任意java对象序列化为json并存储在string类型的key
-     * 并且可以设置逻辑过期时间，用于处理缓存击穿问题
+     * 将任意java对象编码后存储在string类型的key
+     * 并且可以设置逻辑过期时间（写在编码头部），用于处理缓存击穿问题
      * @param key
      * @param value
      * @param logicalExpireTime
      * @param timeUnit
      */
     public void setWithLogicalExpire(String key, Object value, Long logicalExpireTime, TimeUnit timeUnit){
-        RedisData redisData = new RedisData();
-        //LocalDateTime.now().plusSeconds()方法带单位，需要转成秒
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(logicalExpireTime)));
-        redisData.setData(value);
+        long expireAt = System.currentTimeMillis() + timeUnit.toMillis(logicalExpireTime);
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        if (isHashLayout()) {
+            writeLogicalHash(key, cacheValueSerializer.encode(value), expireAt);
+            return;
+        }
+        byteRedisTemplate.opsForValue().set(key, cacheValueSerializer.encode(value, expireAt));
+    }
+
+    /**
+     * 在重建线程中执行：获取互斥锁（其他实例可能在重建），再次检查是否过期，查数据库写入redis
+     * @param aheadMillis 提前刷新的时间，距离逻辑过期超过该时间时不重建
+     */
+    private <R,ID> void rebuildLogical(String key, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit timeUnit, long aheadMillis){
+        String lockKey = LOCK_SHOP_KEY + id;
+        if (!getLock(lockKey)) {
+            return;
+        }
+        try {
+            //DoubleCheck，其他实例刚重建完则无需重建
+            long expireAt = readExpireAt(key);
+            if (expireAt - aheadMillis > System.currentTimeMillis()) {
+                return;
+            }
+            //查数据库，写入redis；数据已经被删除时写入CACHE_NULL_TTL后过期的空值，不能按逻辑过期时间永久保留
+            R r = dbFallback.apply(id);
+            if (r == null) {
+                setLogicalNullBatch(Collections.singletonList(key));
+                return;
+            }
+            this.setWithLogicalExpire(key, r, time, timeUnit);
+        } finally {
+            //释放锁
+            unLock(lockKey);
+        }
+    }
+
+    /**
+     * 批量写入逻辑过期缓存，用管道一次发送，用于缓存预热
+     * hash格式先script load一次，管道中只发送evalsha，不用每个key都发送一遍脚本内容
+     * @param values key -> 数据
+     */
+    public void setWithLogicalExpireBatch(Map<String, ?> values, Long logicalExpireTime, TimeUnit timeUnit){
+        long expireAt = System.currentTimeMillis() + timeUnit.toMillis(logicalExpireTime);
+        byte[] exp = String.valueOf(expireAt).getBytes(StandardCharsets.UTF_8);
+        //每批load一次，redis重启或者script flush之后也能执行
+        String sha = isHashLayout() ? byteRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptLoad(LOGICAL_EXPIRE_SET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8))) : null;
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> {
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                if (sha != null) {
+                    connection.evalSha(sha, ReturnType.INTEGER, 1, rawKey, exp, cacheValueSerializer.encode(value));
+                } else {
+                    connection.set(rawKey, cacheValueSerializer.encode(value, expireAt));
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 读取逻辑过期缓存，不存在返回null
+     * hash格式读到旧的string格式时（WRONGTYPE）按string读取，并顺便迁移为hash格式
+     */
+    private <R> LogicalEntry<R> readLogical(String key, Class<R> type){
+        if (!isHashLayout()) {
+            return readLogicalString(key, type);
+        }
+        try {
+            List<byte[]> values = byteRedisTemplate.<String, byte[]>opsForHash().multiGet(key, LOGICAL_FIELDS);
+            byte[] exp = values.get(0);
+            byte[] data = values.get(1);
+            if (exp == null || data == null) {
+                return null;
+            }
+            return new LogicalEntry<>(Long.parseLong(new String(exp, StandardCharsets.UTF_8)), decodeNullable(data, type));
+        } catch (DataAccessException e) {
+            if (!isWrongType(e)) {
+                throw e;
+            }
+            LogicalEntry<R> entry = readLogicalString(key, type);
+            //空值会自己过期，不迁移
+            if (entry != null && entry.value != null) {
+                writeLogicalHash(key, cacheValueSerializer.encode(entry.value), entry.expireAt);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * 读取string格式的逻辑过期缓存：新格式过期时间在编码头部，旧格式是RedisData包装的json
+     */
+    private <R> LogicalEntry<R> readLogicalString(String key, Class<R> type){
+        byte[] raw = byteRedisTemplate.opsForValue().get(key);
+        if (raw == null) {
+            return null;
+        }
+        if (raw.length == 0) {
+            //空值，由redis过期时间控制有效期（和readLogicalBatch一致）
+            return new LogicalEntry<>(Long.MAX_VALUE, null);
+        }
+        if (cacheValueSerializer.isLegacy(raw)) {
+            //旧格式：要先解析整个json
+            RedisData redisData = JSONUtil.toBean(new String(raw, StandardCharsets.UTF_8), RedisData.class);
+            R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+            return new LogicalEntry<>(redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), r);
+        }
+        return new LogicalEntry<>(cacheValueSerializer.expireAt(raw), cacheValueSerializer.decode(raw, type));
+    }
+
+    /**
+     * 只读取逻辑过期时间，不解析数据，读不到返回-1
+     */
+    private long readExpireAt(String key){
+        try {
+            if (isHashLayout()) {
+                byte[] exp = byteRedisTemplate.<String, byte[]>opsForHash().get(key, LOGICAL_FIELDS.get(0));
+                return exp == null ? -1 : Long.parseLong(new String(exp, StandardCharsets.UTF_8));
+            }
+            byte[] raw = byteRedisTemplate.opsForValue().get(key);
+            if (raw == null || raw.length == 0 || cacheValueSerializer.isLegacy(raw)) {
+                return -1;
+            }
+            return cacheValueSerializer.expireAt(raw);
+        } catch (DataAccessException e) {
+            if (!isWrongType(e)) {
+                throw e;
+            }
+            //还是旧的string格式，等下次读取时迁移
+            return -1;
+        }
+    }
+
+    private void writeLogicalHash(String key, byte[] data, long expireAt){
+        byteRedisTemplate.execute(LOGICAL_EXPIRE_SET_SCRIPT, Collections.singletonList(key),
+                String.valueOf(expireAt).getBytes(StandardCharsets.UTF_8), data);
+    }
+
+    /**
+     * 把指定前缀下string格式的逻辑过期缓存批量迁移为hash格式，返回迁移的key数量
+     * 用scan遍历，不阻塞redis
+     */
+    public <R> int migrateLogicalExpireToHash(String keyPrefix, Class<R> type){
+        List<String> keys = new ArrayList<>();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions().match(keyPrefix + "*").count(1000).build())) {
+                cursor.forEachRemaining(rawKey -> keys.add(new String(rawKey, StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        });
+        int migrated = 0;
+        for (String key : keys) {
+            if (DataType.STRING != stringRedisTemplate.type(key)) {
+                continue;
+            }
+            LogicalEntry<R> entry = readLogicalString(key, type);
+            if (entry != null) {
+                writeLogicalHash(key, cacheValueSerializer.encode(entry.value), entry.expireAt);
+                migrated++;
+            }
+        }
+        return migrated;
+    }
+
+    private boolean isHashLayout(){
+        return "hash".equals(logicalExpireLayout);
+    }
+
+    private static boolean isWrongType(DataAccessException e){
+        Throwable cause = e.getMostSpecificCause();
+        return cause.getMessage() != null && cause.getMessage().startsWith("WRONGTYPE");
+    }
+
+    /**
+     * 逻辑过期缓存：逻辑过期时间 + 解码后的数据，数据为null的是批量查询写入的空值
+     */
+    private static class LogicalEntry<R> {
+        private final long expireAt;
+        private final R value;
+
+        LogicalEntry(long expireAt, R value) {
+            this.expireAt = expireAt;
+            this.value = value;
+        }
     }
 
     /**
      * 根据指定的key查询缓存，并反序列化为指定类型
-     * 利用缓存空值解决缓存穿透问题
+     * 利用布隆过滤器 + 缓存空值解决缓存穿透问题
      * 返回值类型和id类型未知，用泛型
      * @param keyPrefix id前缀
      * @param id
@@ -78,36 +384,171 @@ public class CacheClient {
      */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit timeUnit){
         String key = keyPrefix + id;
+        //0.布隆过滤器判断一定不存在的id直接返回，不访问redis和数据库
+        if (!cacheBloomFilters.mightContain(keyPrefix, id)) {
+            bloomReject.increment();
+            return null;
+        }
+        //先查本地缓存
+        Object local = getLocal(key);
+        if (local == NULL_VALUE) {
+            return null;
+        }
+        if (type.isInstance(local)) {
+            return type.cast(local);
+        }
         //1.从redis查询商铺
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] raw = byteRedisTemplate.opsForValue().get(key);
         //2.判断缓存是否命中
-        if (StrUtil.isNotBlank(json)) {
+        if (raw != null && raw.length > 0) {
             //3.命中则反序列化
-            return JSONUtil.toBean(json, type);
+            l2Hit.increment();
+            R r = cacheValueSerializer.decode(raw, type);
+            putLocal(key, r);
+            return r;
         }
         //判断命中的是否是空值
-        if (json != null) {
+        if (raw != null) {
             //即命中空字符串“”
+            l2Hit.increment();
+            putLocal(key, null);
             return null;
         }
-        //4.未命中且不为空则根据id查询数据库
+        l2Miss.increment();
+        //4.未命中且不为空则根据id查询数据库，同一个key的并发未命中只查一次
         // 需要调用者传递查询逻辑 才能知道具体查询什么
+        R r = type.cast(singleFlight(key, () -> loadFromDb(key, id, dbFallback, time, timeUnit)));
+        putLocal(key, r);
+        return r;
+    }
+
+    /**
+     * 根据指定的key查询缓存，并反序列化为指定类型
+     * 利用互斥锁解决缓存击穿问题：
+     * 本实例内同一个key只有一个线程去竞争redis互斥锁，其他线程等待它的future，不休眠不轮询
+     * 返回的对象是副本，调用方修改它不会影响本地缓存和其他请求
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param timeUnit
+     * @param <R>
+     * @param <ID>
+     * @return
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        Object local = getLocal(key);
+        if (local == NULL_VALUE) {
+            return null;
+        }
+        if (type.isInstance(local)) {
+            return type.cast(local);
+        }
+        //1.从redis查询
+        byte[] raw = byteRedisTemplate.opsForValue().get(key);
+        //2.判断缓存是否命中（包括空值）
+        if (raw != null) {
+            l2Hit.increment();
+            R r = decodeNullable(raw, type);
+            putLocal(key, r);
+            return r;
+        }
+        l2Miss.increment();
+        //3.未命中，由本实例的一个线程去竞争互斥锁并重建缓存
+        R r = type.cast(singleFlight(key, () -> rebuildWithMutex(key, id, type, dbFallback, time, timeUnit)));
+        putLocal(key, r);
+        return r;
+    }
+
+    private <R,ID> R rebuildWithMutex(String key, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit timeUnit){
+        String lockKey = LOCK_SHOP_KEY + id;
+        for (int i = 0; i < MUTEX_MAX_RETRIES; i++) {
+            if (getLock(lockKey)) {
+                try {
+                    //获取锁成功后再次检测redis缓存，DoubleCheck，可能其他实例刚重建完
+                    byte[] raw = byteRedisTemplate.opsForValue().get(key);
+                    if (raw != null) {
+                        return decodeNullable(raw, type);
+                    }
+                    return loadFromDb(key, id, dbFallback, time, timeUnit);
+                } finally {
+                    //释放互斥锁
+                    unLock(lockKey);
+                }
+            }
+            //锁被其他实例持有，等它重建完再读redis（每个实例只有这一个线程在等）
+            try {
+                Thread.sleep(MUTEX_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            byte[] raw = byteRedisTemplate.opsForValue().get(key);
+            if (raw != null) {
+                return decodeNullable(raw, type);
+            }
+        }
+        //一直没等到其他实例的重建结果，直接查数据库兜底
+        return loadFromDb(key, id, dbFallback, time, timeUnit);
+    }
+
+    /**
+     * 查数据库并写入redis，不存在时写入空值防止缓存穿透
+     */
+    private <R,ID> R loadFromDb(String key, ID id, Function<ID,R> dbFallback,Long time,TimeUnit timeUnit){
         R r = dbFallback.apply(id);
-        //5.判断数据库中是否存在该商铺
+        //判断数据库中是否存在
         if (r == null) {
-            //6.不存在则返回错误  给redis写入空值防止缓存穿透
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            //不存在则给redis写入空值防止缓存穿透
+            byteRedisTemplate.opsForValue().set(key, EMPTY, CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
-        //7.存在则将数据写入redis，并设置过期时间，再从redis返回给客户端
-        //直接调用前面写的set方法
+        //存在则将数据写入redis，并设置过期时间
         this.set(key,r,time,timeUnit);
         return r;
     }
 
+    /**
+     * 同一个key同时只执行一次loader，其他线程等待同一个future的结果
+     * 等待的线程拿到的是结果的副本，和本地缓存一样不会和执行loader的线程共用同一个对象
+     */
+    private Object singleFlight(String key, Supplier<Object> loader){
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                Object result = running.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+                return result == null ? null : copyOf(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new RuntimeException("等待缓存重建超时：" + key, e);
+            }
+        }
+        try {
+            Object result = loader.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
     /**
      * 根据指定的key查询缓存，并反序列化为指定类型
      * 利用逻辑过期解决缓存击穿问题
+     * 缓存一般由预热写入，未命中时（新增或被删除的key）查数据库写入
+     * 返回的对象是副本，调用方修改它不会影响本地缓存和其他请求
      * 返回值类型和id类型未知，用泛型
      * @param keyPrefix
      * @param id
@@ -121,50 +562,352 @@ public class CacheClient {
      */
     public <R,ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit timeUnit){
         String key = keyPrefix + id;
-        //1.从redis查询商铺
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //布隆过滤器判断一定不存在的id直接返回
+        if (!cacheBloomFilters.mightContain(keyPrefix, id)) {
+            bloomReject.increment();
+            return null;
+        }
+        //记录访问频率，热点key会在逻辑过期前被提前刷新
+        cacheRefreshAhead.record(key, () -> readExpireAt(key),
+                () -> rebuildLogical(key, id, type, dbFallback, time, timeUnit, cacheRefreshAhead.aheadMillis()));
+        //0.先查本地缓存，本地缓存过期时间远小于逻辑过期时间，命中时不需要判断逻辑过期
+        Object local = getLocal(key);
+        if (local == NULL_VALUE) {
+            return null;
+        }
+        if (type.isInstance(local)) {
+            return type.cast(local);
+        }
+        //1.从redis查询商铺（hash格式一次hmget取出逻辑过期时间和数据）
+        LogicalEntry<R> entry = readLogical(key, type);
         //2.判断缓存是否命中
-        if (StrUtil.isBlank(json)) {
-            //3.未命中则返回空
+        if (entry == null) {
+            //3.未命中（没有预热到或者已被删除），同一个key只有一个线程查数据库并写入
+            l2Miss.increment();
+            R loaded = type.cast(singleFlight(key, () -> {
+                R r = dbFallback.apply(id);
+                if (r == null) {
+                    //不存在时同样写入会过期的空值，防止缓存穿透
+                    setLogicalNullBatch(Collections.singletonList(key));
+                } else {
+                    this.setWithLogicalExpire(key, r, time, timeUnit);
+                }
+                return r;
+            }));
+            if (loaded != null) {
+                putLocal(key, loaded);
+            }
+            return loaded;
+        }
+        l2Hit.increment();
+        //4.命中，数据只解码一次
+        R r = entry.value;
+        if (r == null) {
+            //批量查询写入的空值，由redis过期时间控制有效期，不需要重建
+            putLocal(key, null);
             return null;
         }
-        //4.命中,先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        long expireAt = entry.expireAt;
         //5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
-            //6.未过期返回信息
+        if (expireAt > System.currentTimeMillis()){
+            //6.未过期返回信息，放入本地缓存
+            putLocal(key, r);
             return r;
         }
-        //7.已经过期，缓存重建
-        //获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        if (getLock(lockKey)) {
-            //获取成功，开辟新线程重建缓存（根据id到db查询，写入redis，释放互斥锁）
-            //获取锁成功后应该再次检测redis缓存是否过期，DoubleCheck，若存在则无需重建缓存
-            CACHE_REBUILD_EXCUTOR.submit(()->{
-                //重建缓存
-                try {
-                    //查数据库
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(lockKey);
+        //7.已经过期，提交到共享的重建线程池（同一个key只提交一次，线程池满时直接返回旧数据）
+        cacheRebuildExecutor.submit(key, () -> rebuildLogical(key, id, type, dbFallback, time, timeUnit, 0));
+
+        //没能成功获取，或者重建缓存后都要返回过期的shop信息
+        return r;
+    }
+
+
+
+    /**
+     * 批量查询缓存（TTL过期的string格式）：一次mget，未命中的id一次批量查数据库，再用管道回写
+     * @param batchDbFallback 根据id集合批量查询数据库（in查询），返回 id -> 数据，不存在的id不返回
+     * @return id -> 数据，不存在的id不返回；数据都是副本，调用方可以直接修改
+     */
+    public <R,ID> Map<ID,R> multiGet(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                     Function<Collection<ID>, Map<ID,R>> batchDbFallback, Long time, TimeUnit timeUnit){
+        Map<ID,R> result = new HashMap<>(ids.size() * 2);
+        //1.先过滤布隆过滤器、查本地缓存
+        List<ID> remoteIds = filterLocal(keyPrefix, ids, type, result);
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+        //2.一次mget查询redis
+        List<byte[]> raws = byteRedisTemplate.opsForValue().multiGet(keys(keyPrefix, remoteIds));
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] raw = raws == null ? null : raws.get(i);
+            if (raw == null) {
+                l2Miss.increment();
+                missIds.add(id);
+                continue;
+            }
+            l2Hit.increment();
+            R r = decodeNullable(raw, type);
+            putLocal(keyPrefix + id, r);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        //3.未命中的id一次批量查数据库
+        Map<ID,R> loaded = batchDbFallback.apply(missIds);
+        //4.管道回写redis，不存在的id写入空值防止缓存穿透
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                if (r == null) {
+                    connection.setEx(rawKey, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), EMPTY);
+                } else {
+                    connection.setEx(rawKey, timeUnit.toSeconds(time), cacheValueSerializer.encode(r));
+                }
+            }
+            return null;
+        });
+        for (ID id : missIds) {
+            R r = loaded.get(id);
+            putLocal(keyPrefix + id, r);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量查询逻辑过期缓存：一次管道读取，未命中的id一次批量查数据库并管道写入，已过期的返回旧数据并提交重建
+     * 数据库中不存在的id写入空值（redis中CACHE_NULL_TTL后过期），重复查询不会再打到数据库
+     * @param batchDbFallback 根据id集合批量查询数据库（in查询），返回 id -> 数据，不存在的id不返回
+     * @return id -> 数据，不存在的id不返回；数据都是副本，调用方可以直接修改
+     */
+    public <R,ID> Map<ID,R> multiGetWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                      Function<Collection<ID>, Map<ID,R>> batchDbFallback, Long time, TimeUnit timeUnit){
+        Map<ID,R> result = new HashMap<>(ids.size() * 2);
+        //1.先过滤布隆过滤器、查本地缓存
+        List<ID> remoteIds = filterLocal(keyPrefix, ids, type, result);
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+        //2.一次管道读取逻辑过期时间和数据
+        List<LogicalEntry<R>> entries = readLogicalBatch(keys(keyPrefix, remoteIds), type);
+        List<ID> missIds = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            LogicalEntry<R> entry = entries.get(i);
+            if (entry == null) {
+                l2Miss.increment();
+                missIds.add(id);
+                continue;
+            }
+            l2Hit.increment();
+            String key = keyPrefix + id;
+            if (entry.value == null) {
+                //缓存的空值
+                putLocal(key, null);
+                continue;
+            }
+            result.put(id, entry.value);
+            if (entry.expireAt > now) {
+                putLocal(key, entry.value);
+            } else {
+                //已过期，返回旧数据，提交重建
+                cacheRebuildExecutor.submit(key, () -> rebuildLogical(key, id, type,
+                        oneId -> batchDbFallback.apply(Collections.singletonList(oneId)).get(oneId), time, timeUnit, 0));
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        //3.未命中的id一次批量查数据库，管道写入，不存在的id写入空值防止缓存穿透
+        Map<ID,R> loaded = batchDbFallback.apply(missIds);
+        Map<String, R> values = new HashMap<>(loaded.size() * 2);
+        List<String> nullKeys = new ArrayList<>();
+        for (ID id : missIds) {
+            String key = keyPrefix + id;
+            R r = loaded.get(id);
+            putLocal(key, r);
+            if (r == null) {
+                nullKeys.add(key);
+            } else {
+                values.put(key, r);
+                result.put(id, r);
+            }
+        }
+        if (!values.isEmpty()) {
+            setWithLogicalExpireBatch(values, time, timeUnit);
+        }
+        if (!nullKeys.isEmpty()) {
+            setLogicalNullBatch(nullKeys);
+        }
+        return result;
+    }
+
+    /**
+     * 管道写入逻辑过期缓存的空值：数据为空，redis中CACHE_NULL_TTL后过期
+     */
+    private void setLogicalNullBatch(List<String> keys){
+        long ttlSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        byte[] exp = String.valueOf(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds)).getBytes(StandardCharsets.UTF_8);
+        Map<byte[], byte[]> fields = new HashMap<>(4);
+        fields.put(LOGICAL_FIELDS.get(0).getBytes(StandardCharsets.UTF_8), exp);
+        fields.put(LOGICAL_FIELDS.get(1).getBytes(StandardCharsets.UTF_8), EMPTY);
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                if (isHashLayout()) {
+                    //先删除，兼容旧的string格式的key
+                    connection.del(rawKey);
+                    connection.hMSet(rawKey, fields);
+                    connection.expire(rawKey, ttlSeconds);
+                } else {
+                    connection.setEx(rawKey, ttlSeconds, EMPTY);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 过滤掉布隆过滤器判断不存在的id，本地缓存命中的放入结果，返回需要查redis的id
+     */
+    private <R,ID> List<ID> filterLocal(String keyPrefix, Collection<ID> ids, Class<R> type, Map<ID,R> result){
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!cacheBloomFilters.mightContain(keyPrefix, id)) {
+                bloomReject.increment();
+                continue;
+            }
+            Object local = getLocal(keyPrefix + id);
+            if (local == NULL_VALUE) {
+                continue;
+            }
+            if (type.isInstance(local)) {
+                result.put(id, type.cast(local));
+                continue;
+            }
+            remoteIds.add(id);
+        }
+        return remoteIds;
+    }
+
+    private static <ID> List<String> keys(String keyPrefix, List<ID> ids){
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            keys.add(keyPrefix + id);
+        }
+        return keys;
+    }
+
+    /**
+     * 管道批量读取逻辑过期缓存，和keys一一对应，不存在的为null
+     */
+    private <R> List<LogicalEntry<R>> readLogicalBatch(List<String> keys, Class<R> type){
+        List<LogicalEntry<R>> entries = new ArrayList<>(keys.size());
+        if (!isHashLayout()) {
+            List<byte[]> raws = byteRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] raw = raws == null ? null : raws.get(i);
+                if (raw == null) {
+                    entries.add(null);
+                } else if (raw.length == 0) {
+                    //空值，由redis过期时间控制有效期
+                    entries.add(new LogicalEntry<>(Long.MAX_VALUE, null));
+                } else if (cacheValueSerializer.isLegacy(raw)) {
+                    //旧格式逐个读取
+                    entries.add(readLogicalString(keys.get(i), type));
+                } else {
+                    entries.add(new LogicalEntry<>(cacheValueSerializer.expireAt(raw), cacheValueSerializer.decode(raw, type)));
+                }
+            }
+            return entries;
+        }
+        List<Object> results;
+        try {
+            byte[][] fields = {LOGICAL_FIELDS.get(0).getBytes(StandardCharsets.UTF_8), LOGICAL_FIELDS.get(1).getBytes(StandardCharsets.UTF_8)};
+            results = byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : keys) {
+                    connection.hMGet(key.getBytes(StandardCharsets.UTF_8), fields);
                 }
+                return null;
             });
+        } catch (DataAccessException e) {
+            //有旧的string格式的key，逐个读取（顺便迁移）
+            for (String key : keys) {
+                entries.add(readLogical(key, type));
+            }
+            return entries;
+        }
+        for (Object result : results) {
+            @SuppressWarnings("unchecked")
+            List<byte[]> values = (List<byte[]>) result;
+            if (values == null || values.get(0) == null || values.get(1) == null) {
+                entries.add(null);
+            } else {
+                entries.add(new LogicalEntry<>(Long.parseLong(new String(values.get(0), StandardCharsets.UTF_8)),
+                        decodeNullable(values.get(1), type)));
+            }
         }
+        return entries;
+    }
 
-        //没能成功获取，或者重建缓存后都要返回过期的shop信息
-        return r;
+    /**
+     * 删除缓存：删除redis中的key，清除本地缓存，并通知其他实例清除本地缓存
+     * @param key
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
     }
 
+    /**
+     * 解码redis中的值，空数组是缓存的空值
+     */
+    private <R> R decodeNullable(byte[] raw, Class<R> type){
+        return raw.length == 0 ? null : cacheValueSerializer.decode(raw, type);
+    }
 
+    /**
+     * 查询本地缓存，没有开启本地缓存时返回null，命中时返回副本
+     * 本地缓存中的对象被所有请求共享，直接返回的话调用方填充的字段会被其他请求看到
+     */
+    private Object getLocal(String key){
+        if (!localEnabled) {
+            return null;
+        }
+        Object value = localCache.getIfPresent(key);
+        if (value == null) {
+            l1Miss.increment();
+            return null;
+        }
+        l1Hit.increment();
+        return value == NULL_VALUE ? NULL_VALUE : copyOf(value);
+    }
+
+    /**
+     * 放入本地缓存的是副本，调用方之后修改传入的对象不会影响缓存
+     */
+    private void putLocal(String key, Object value){
+        if (localEnabled) {
+            localCache.put(key, value == null ? NULL_VALUE : copyOf(value));
+        }
+    }
+
+    /**
+     * 浅拷贝：缓存的实体（Shop、Blog、UserDTO）字段都是String、包装类、LocalDateTime这类不可变类型，浅拷贝就是完整的副本
+     */
+    private static Object copyOf(Object value){
+        return BeanUtil.copyProperties(value, value.getClass());
+    }
 
     /**
      * 获取锁
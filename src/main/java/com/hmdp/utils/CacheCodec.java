@@ -0,0 +1,24 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器
+ * 每个编解码器有一个唯一的id，写在缓存值的头部，读取时按头部选择编解码器，
+ * 所以切换编解码器后旧数据仍然可以读取，随着缓存过期逐渐替换成新格式
+ * 实现注册为spring bean即可，CacheValueSerializer启动时收集所有的编解码器
+ * @author qrpop
+ */
+public interface CacheCodec {
+    /**
+     * 编解码器id，写入头部，不能重复，也不能修改
+     */
+    byte id();
+
+    /**
+     * 编解码器名称，hmdp.cache.codec按名称选择写入时使用的编解码器
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+}
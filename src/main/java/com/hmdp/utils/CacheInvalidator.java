@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 写操作后的缓存失效
+ * 1.在当前事务中写入发件箱记录，和数据修改一起提交
+ * 2.事务提交后立即删除缓存，并延迟一段时间再删除一次（延迟双删），
+ *   删掉提交前并发读请求写回的旧数据
+ * 3.变更事件来源（发件箱轮询）兜底，进程在提交后崩溃也能删除缓存
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+    private final CacheClient cacheClient;
+    private final CacheOutboxMapper cacheOutboxMapper;
+    private final CacheChangeEventSource cacheChangeEventSource;
+
+    /**
+     * 第二次删除的延迟，要大于一次读数据库+写缓存的耗时
+     */
+    @Value("${hmdp.cache.invalidation.delay-millis:500}")
+    private long delayMillis;
+
+    private final ScheduledExecutorService delayedDeleteExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cache-delayed-delete-", true));
+
+    public CacheInvalidator(CacheClient cacheClient, CacheOutboxMapper cacheOutboxMapper, CacheChangeEventSource cacheChangeEventSource) {
+        this.cacheClient = cacheClient;
+        this.cacheOutboxMapper = cacheOutboxMapper;
+        this.cacheChangeEventSource = cacheChangeEventSource;
+    }
+
+    @PostConstruct
+    private void init() {
+        cacheChangeEventSource.start(this::delete);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        cacheChangeEventSource.stop();
+        delayedDeleteExecutor.shutdownNow();
+    }
+
+    /**
+     * 在事务提交后删除缓存，没有事务时立即删除
+     */
+    public void invalidateAfterCommit(String key) {
+        cacheOutboxMapper.insert(new CacheOutbox().setCacheKey(key));
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            deleteTwice(key);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                deleteTwice(key);
+            }
+        });
+    }
+
+    private void deleteTwice(String key) {
+        delete(key);
+        delayedDeleteExecutor.schedule(() -> delete(key), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void delete(String key) {
+        try {
+            cacheClient.delete(key);
+        } catch (Exception e) {
+            //删除失败时由发件箱轮询再次删除
+            log.error("删除缓存{}失败", key, e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 共享的缓存重建线程池
+ * 有界队列，同一个key同时只有一个重建任务，用信号量限制同时查数据库的任务数；
+ * 队列满时拒绝提交，调用方继续返回旧数据
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.rebuild.threads:4}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:200}")
+    private int queueCapacity;
+    @Value("${hmdp.cache.rebuild.db-concurrency:4}")
+    private int dbConcurrency;
+    @Value("${hmdp.cache.rebuild.await-termination-seconds:10}")
+    private long awaitTerminationSeconds;
+
+    private ThreadPoolExecutor executor;
+    private Semaphore dbPermits;
+    /**
+     * 正在排队或执行的key
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private Timer rebuildTimer;
+    private Counter failed;
+    private Counter rejected;
+    private Counter deduplicated;
+
+    public CacheRebuildExecutor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new NamedThreadFactory("cache-rebuild-", false),
+                new ThreadPoolExecutor.AbortPolicy());
+        dbPermits = new Semaphore(dbConcurrency);
+        Gauge.builder("hmdp.cache.rebuild.queue", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("hmdp.cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        rebuildTimer = Timer.builder("hmdp.cache.rebuild.latency").register(meterRegistry);
+        failed = Counter.builder("hmdp.cache.rebuild.failed").register(meterRegistry);
+        rejected = Counter.builder("hmdp.cache.rebuild.rejected").register(meterRegistry);
+        deduplicated = Counter.builder("hmdp.cache.rebuild.deduplicated").register(meterRegistry);
+    }
+
+    /**
+     * 优雅关闭：不再接收新任务，等待已提交的任务执行完
+     */
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(awaitTerminationSeconds, TimeUnit.SECONDS)) {
+            log.warn("缓存重建任务未在{}秒内完成，剩余{}个任务被丢弃", awaitTerminationSeconds, executor.shutdownNow().size());
+        }
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key，同一个key已经在重建时直接返回
+     * @param task 重建逻辑（查数据库、写redis）
+     * @return 是否已提交或已在重建，false表示线程池饱和被拒绝
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!inFlight.add(key)) {
+            deduplicated.increment();
+            return true;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+            rejected.increment();
+            log.warn("缓存重建线程池已满，跳过{}的重建", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        long begin = System.nanoTime();
+        try {
+            dbPermits.acquire();
+            try {
+                task.run();
+            } finally {
+                dbPermits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("重建缓存{}失败", key, e);
+        } finally {
+            inFlight.remove(key);
+            rebuildTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 逻辑过期缓存的提前刷新
+ * 用count-min sketch统计key的访问频率，定时挑出最热的K个key，在逻辑过期前提交重建，
+ * 让热点数据的读请求几乎都命中未过期的缓存；不热的key不刷新，过期后按原来的逻辑重建
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class CacheRefreshAhead {
+    private final CacheRebuildExecutor cacheRebuildExecutor;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.refresh-ahead.enabled:true}")
+    private boolean enabled;
+    /**
+     * 提前刷新的热点key个数
+     */
+    @Value("${hmdp.cache.refresh-ahead.top-k:100}")
+    private int topK;
+    /**
+     * 距离逻辑过期不到该时间时刷新
+     */
+    @Value("${hmdp.cache.refresh-ahead.ahead-seconds:10}")
+    private long aheadSeconds;
+    @Value("${hmdp.cache.refresh-ahead.interval-seconds:5}")
+    private long intervalSeconds;
+    /**
+     * 访问计数减半的间隔
+     */
+    @Value("${hmdp.cache.refresh-ahead.decay-seconds:60}")
+    private long decaySeconds;
+
+    private final CountMinSketch sketch = new CountMinSketch(1 << 16);
+    /**
+     * 候选热点key -> 刷新方式，定时裁剪为top-K
+     */
+    private final Map<String, Refresher> candidates = new ConcurrentHashMap<>();
+    /**
+     * 进入候选需要达到的访问次数（当前第K热的key的估计值）
+     */
+    private volatile int admitThreshold = 1;
+
+    private ScheduledExecutorService refreshExecutor;
+    private Counter refreshed;
+
+    public CacheRefreshAhead(CacheRebuildExecutor cacheRebuildExecutor, MeterRegistry meterRegistry) {
+        this.cacheRebuildExecutor = cacheRebuildExecutor;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        refreshed = Counter.builder("hmdp.cache.refresh-ahead").register(meterRegistry);
+        Gauge.builder("hmdp.cache.refresh-ahead.candidates", candidates, Map::size).register(meterRegistry);
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cache-refresh-ahead-", true));
+        refreshExecutor.scheduleWithFixedDelay(this::refreshHotKeys, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        refreshExecutor.scheduleWithFixedDelay(sketch::halve, decaySeconds, decaySeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+
+    public long aheadMillis() {
+        return TimeUnit.SECONDS.toMillis(aheadSeconds);
+    }
+
+    /**
+     * 记录一次访问，足够热时登记刷新方式
+     * @param key 缓存key
+     * @param expireAtReader 读取逻辑过期时间（毫秒时间戳），读不到返回-1
+     * @param refresh 重建缓存
+     */
+    public void record(String key, LongSupplier expireAtReader, Runnable refresh) {
+        if (!enabled) {
+            return;
+        }
+        int estimate = sketch.increment(key);
+        if (estimate >= admitThreshold && !candidates.containsKey(key)) {
+            candidates.putIfAbsent(key, new Refresher(expireAtReader, refresh));
+        }
+    }
+
+    private void refreshHotKeys() {
+        try {
+            //1.按访问频率排序，只保留前K个，其余的让它自然过期
+            List<Map.Entry<String, Integer>> ranked = new ArrayList<>(candidates.size());
+            for (String key : candidates.keySet()) {
+                ranked.add(new AbstractMap.SimpleEntry<>(key, sketch.estimate(key)));
+            }
+            ranked.sort(Map.Entry.<String, Integer>comparingByValue(Comparator.reverseOrder()));
+            for (int i = topK; i < ranked.size(); i++) {
+                candidates.remove(ranked.get(i).getKey());
+            }
+            admitThreshold = ranked.size() < topK ? 1 : Math.max(1, ranked.get(topK - 1).getValue());
+            //2.快要过期的热点key提交重建
+            long deadline = System.currentTimeMillis() + aheadMillis();
+            for (int i = 0; i < Math.min(topK, ranked.size()); i++) {
+                String key = ranked.get(i).getKey();
+                Refresher refresher = candidates.get(key);
+                if (refresher == null) {
+                    continue;
+                }
+                long expireAt = refresher.expireAtReader.getAsLong();
+                if (expireAt > 0 && expireAt <= deadline && cacheRebuildExecutor.submit(key, refresher.refresh)) {
+                    refreshed.increment();
+                }
+            }
+        } catch (Exception e) {
+            log.error("提前刷新热点缓存失败", e);
+        }
+    }
+
+    private static class Refresher {
+        private final LongSupplier expireAtReader;
+        private final Runnable refresh;
+
+        Refresher(LongSupplier expireAtReader, Runnable refresh) {
+            this.expireAtReader = expireAtReader;
+            this.refresh = refresh;
+        }
+    }
+}
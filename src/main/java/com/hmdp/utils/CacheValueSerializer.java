@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 缓存值的二进制格式：
+ * [magic 1字节][版本 1字节][编解码器id 1字节][标记 1字节][逻辑过期时间 8字节，可选][压缩前长度 4字节，可选][数据]
+ * 数据超过阈值时用lz4压缩；不以magic开头的是旧格式（hutool json字符串），仍然可以读取
+ * 编解码器是容器中所有的CacheCodec bean，新增编码只需要注册一个bean
+ * @author qrpop
+ */
+@Component
+public class CacheValueSerializer {
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final byte VERSION = 1;
+    private static final int FLAG_LZ4 = 1;
+    private static final int FLAG_EXPIRE = 1 << 1;
+    private static final int HEADER_LENGTH = 4;
+
+    /**
+     * 写入时使用的编解码器名称 json/smile/其他注册的编解码器
+     */
+    @Value("${hmdp.cache.codec:smile}")
+    private String codecName;
+    /**
+     * 数据超过该字节数时压缩，小于等于0不压缩
+     */
+    @Value("${hmdp.cache.compress-threshold:1024}")
+    private int compressThreshold;
+
+    private final List<CacheCodec> codecBeans;
+    private final Map<Byte, CacheCodec> codecs = new HashMap<>();
+    private CacheCodec writeCodec;
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    public CacheValueSerializer(List<CacheCodec> codecBeans) {
+        this.codecBeans = codecBeans;
+    }
+
+    @PostConstruct
+    private void init() {
+        codecBeans.forEach(this::register);
+        writeCodec = codecBeans.stream().filter(codec -> codec.name().equals(codecName)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编解码器：" + codecName));
+    }
+
+    private void register(CacheCodec codec) {
+        CacheCodec existing = codecs.putIfAbsent(codec.id(), codec);
+        //id写在缓存值头部，重复的话读取时分不清是哪个编解码器写的
+        if (existing != null) {
+            throw new IllegalStateException("缓存编解码器id重复：" + codec.id() + "（" + existing.name() + "、" + codec.name() + "）");
+        }
+    }
+
+    public byte[] encode(Object value) {
+        return encode(value, 0, false);
+    }
+
+    /**
+     * 带逻辑过期时间编码，过期时间在头部，判断是否过期时不需要解析数据
+     * @param expireAt 逻辑过期时间（毫秒时间戳）
+     */
+    public byte[] encode(Object value, long expireAt) {
+        return encode(value, expireAt, true);
+    }
+
+    private byte[] encode(Object value, long expireAt, boolean withExpire) {
+        byte[] data = writeCodec.encode(value);
+        int flags = withExpire ? FLAG_EXPIRE : 0;
+        int rawLength = data.length;
+        if (compressThreshold > 0 && data.length > compressThreshold) {
+            byte[] compressed = compressor.compress(data);
+            //压缩后更小才使用
+            if (compressed.length + 4 < data.length) {
+                data = compressed;
+                flags |= FLAG_LZ4;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (withExpire ? 8 : 0) + ((flags & FLAG_LZ4) != 0 ? 4 : 0) + data.length);
+        buffer.put(MAGIC).put(VERSION).put(writeCodec.id()).put((byte) flags);
+        if (withExpire) {
+            buffer.putLong(expireAt);
+        }
+        if ((flags & FLAG_LZ4) != 0) {
+            buffer.putInt(rawLength);
+        }
+        buffer.put(data);
+        return buffer.array();
+    }
+
+    /**
+     * 是否是旧格式（hutool json字符串）
+     */
+    public boolean isLegacy(byte[] raw) {
+        return raw.length < HEADER_LENGTH || raw[0] != MAGIC;
+    }
+
+    /**
+     * 读取头部的逻辑过期时间，没有时返回-1
+     */
+    public long expireAt(byte[] raw) {
+        if ((raw[3] & FLAG_EXPIRE) == 0) {
+            return -1;
+        }
+        return ByteBuffer.wrap(raw, HEADER_LENGTH, 8).getLong();
+    }
+
+    public <T> T decode(byte[] raw, Class<T> type) {
+        if (isLegacy(raw)) {
+            return JSONUtil.toBean(new String(raw, StandardCharsets.UTF_8), type);
+        }
+        if (raw[1] != VERSION) {
+            throw new IllegalStateException("不支持的缓存格式版本：" + raw[1]);
+        }
+        CacheCodec codec = codecs.get(raw[2]);
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存编解码器：" + raw[2]);
+        }
+        int flags = raw[3];
+        int offset = HEADER_LENGTH + ((flags & FLAG_EXPIRE) != 0 ? 8 : 0);
+        if ((flags & FLAG_LZ4) != 0) {
+            int rawLength = ByteBuffer.wrap(raw, offset, 4).getInt();
+            byte[] data = decompressor.decompress(raw, offset + 4, rawLength);
+            return codec.decode(data, 0, data.length, type);
+        }
+        return codec.decode(raw, offset, raw.length - offset, type);
+    }
+}
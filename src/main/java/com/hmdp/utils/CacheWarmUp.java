@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * 启动时的缓存预热：店铺（逻辑过期，同时写入地理位置）、店铺分类、秒杀库存
+ * 应用启动完成后在后台线程执行，作为健康检查项加入readiness探针，预热完成前实例不接收流量；
+ * 预热失败时健康检查显示failed和失败原因，隔一段时间重试，成功之前一直是down
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class CacheWarmUp implements HealthIndicator {
+    private final CacheClient cacheClient;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ShopMapper shopMapper;
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final IShopTypeService shopTypeService;
+    private final ShopGeoIndex shopGeoIndex;
+
+    @Value("${hmdp.warm-up.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.warm-up.page-size:500}")
+    private int pageSize;
+    @Value("${hmdp.seckill.stock-shards:4}")
+    private int stockShards;
+    /**
+     * 预热失败后的重试间隔
+     */
+    @Value("${hmdp.warm-up.retry-interval-seconds:30}")
+    private long retryIntervalSeconds;
+
+    private volatile String stage = "pending";
+    private volatile String error;
+    private volatile int attempts;
+    private volatile long warmedShops;
+    private volatile long totalShops;
+    private volatile long durationMillis = -1;
+
+    public CacheWarmUp(CacheClient cacheClient, StringRedisTemplate stringRedisTemplate, ShopMapper shopMapper,
+                       SeckillVoucherMapper seckillVoucherMapper, IShopTypeService shopTypeService, ShopGeoIndex shopGeoIndex) {
+        this.cacheClient = cacheClient;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shopMapper = shopMapper;
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.shopTypeService = shopTypeService;
+        this.shopGeoIndex = shopGeoIndex;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!enabled) {
+            stage = "done";
+            return;
+        }
+        new NamedThreadFactory("cache-warm-up-", true).newThread(this::warmUpUntilDone).start();
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder builder = "done".equals(stage) ? Health.up() : Health.down();
+        builder.withDetail("stage", stage)
+                .withDetail("shops", warmedShops + "/" + totalShops)
+                .withDetail("durationMillis", durationMillis)
+                .withDetail("attempts", attempts);
+        if (error != null) {
+            builder.withDetail("error", error);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 预热直到成功，失败后隔retry-interval重试（预热的写入都可以重复执行）
+     */
+    private void warmUpUntilDone() {
+        while (!warmUp()) {
+            try {
+                TimeUnit.SECONDS.sleep(retryIntervalSeconds);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 是否预热成功
+     */
+    private boolean warmUp() {
+        long begin = System.currentTimeMillis();
+        attempts++;
+        warmedShops = 0;
+        try {
+            stage = "shop";
+            warmUpShops();
+            stage = "shop-type";
+            shopTypeService.refreshShopTypeCache();
+            stage = "seckill-stock";
+            int vouchers = warmUpSeckillStock();
+            durationMillis = System.currentTimeMillis() - begin;
+            log.info("缓存预热完成：店铺{}个，秒杀券{}张，耗时{}ms", warmedShops, vouchers, durationMillis);
+            error = null;
+            stage = "done";
+            return true;
+        } catch (Exception e) {
+            //记下失败的阶段和原因，readiness保持down，稍后重试
+            durationMillis = System.currentTimeMillis() - begin;
+            log.error("缓存预热在{}阶段失败，已预热店铺{}个，{}秒后重试", stage, warmedShops, retryIntervalSeconds, e);
+            error = stage + ": " + e;
+            stage = "failed";
+            return false;
+        }
+    }
+
+    /**
+     * 按id分页读取店铺（id > 上一页最大id，不用offset），每页用管道写入redis
+     */
+    private void warmUpShops() {
+        totalShops = shopMapper.selectCount(null);
+        long lastId = 0;
+        List<Shop> shops;
+        while (!(shops = shopMapper.selectList(new QueryWrapper<Shop>().gt("id", lastId).orderByAsc("id").last("limit " + pageSize))).isEmpty()) {
+            Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 2);
+            for (Shop shop : shops) {
+                values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            cacheClient.setWithLogicalExpireBatch(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            shopGeoIndex.addAll(shops);
+            lastId = shops.get(shops.size() - 1).getId();
+            warmedShops += shops.size();
+            log.debug("店铺预热进度 {}/{}", warmedShops, totalShops);
+        }
+    }
+
+    /**
+     * 预热还没结束的秒杀券库存，用setnx，不覆盖redis中正在扣减的库存
+     */
+    private int warmUpSeckillStock() {
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(
+                new QueryWrapper<SeckillVoucher>().gt("end_time", LocalDateTime.now()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (SeckillVoucher voucher : vouchers) {
+                int[] shardStocks = SeckillShardUtils.splitStock(voucher.getStock(), stockShards);
+                for (int shard = 0; shard < shardStocks.length; shard++) {
+                    connection.setNX(SeckillShardUtils.stockKey(voucher.getVoucherId(), shard).getBytes(StandardCharsets.UTF_8),
+                            String.valueOf(shardStocks[shard]).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+        return vouchers.size();
+    }
+}
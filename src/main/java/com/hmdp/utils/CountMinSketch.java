@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * count-min sketch，用固定内存估计每个key的访问次数（只会高估，不会低估）
+ * 定期减半，让估计值反映最近一段时间的热度
+ * 每一行用不同种子的murmur3哈希key的字节，hashCode相同的两个key不会在所有行都冲突
+ * @author qrpop
+ */
+public class CountMinSketch {
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int depth;
+    private final int widthMask;
+    private final AtomicIntegerArray counters;
+
+    /**
+     * @param width 每行的计数器个数，向上取整为2的幂
+     */
+    public CountMinSketch(int width) {
+        this.depth = SEEDS.length;
+        int w = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        this.widthMask = w - 1;
+        this.counters = new AtomicIntegerArray(depth * w);
+    }
+
+    /**
+     * 计数加一，返回加一后的估计值
+     */
+    public int increment(String key) {
+        byte[] bytes = StrUtil.utf8Bytes(key);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = index(bytes, i);
+            int value = counters.get(index);
+            //计数器饱和后不再增加
+            if (value < Integer.MAX_VALUE) {
+                value = counters.incrementAndGet(index);
+            }
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    public int estimate(String key) {
+        byte[] bytes = StrUtil.utf8Bytes(key);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counters.get(index(bytes, i)));
+        }
+        return min;
+    }
+
+    /**
+     * 所有计数器减半（衰减），并发的increment可能丢失少量计数，不影响热度估计
+     */
+    public void halve() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, counters.get(i) >>> 1);
+        }
+    }
+
+    private int index(byte[] key, int row) {
+        int h = MurmurHash.hash32(key, key.length, SEEDS[row]);
+        return row * (widthMask + 1) + (h & widthMask);
+    }
+}
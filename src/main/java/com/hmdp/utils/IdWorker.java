@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 全局唯一id生成器
+ * id是64位long：高32位是从2022-01-01开始的秒数，低32位是序列号，不同实现保持同样的布局
+ * @author qrpop
+ */
+public interface IdWorker {
+    /**
+     * 开始时间戳：2022.1.1.0：0：0 对应以秒计数的时间
+     */
+    long BEGIN_TIMESTAMP = 1640995200L;
+
+    /**
+     * id中的秒数：本地时间按UTC换算成秒（沿用RedisIdWorker一直以来的算法），再减去开始时间
+     * 所有实现都用这个时间源，切换实现后id的时间部分不会倒退
+     * @param time 本地时间
+     * @return 从开始时间算起的秒数
+     */
+    static long secondsOf(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 生成一个id
+     * @param keyPrefix 业务前缀
+     * @return id
+     */
+    Long nextId(String keyPrefix);
+
+    /**
+     * 批量生成id
+     * @param keyPrefix 业务前缀
+     * @param count 个数
+     * @return id数组
+     */
+    long[] nextIds(String keyPrefix, int count);
+}
@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+
+/**
+ * 登录令牌
+ * redis模式（TokenSessionCache）：token是随机串，用户信息存在redis中；
+ * signed模式（SignedTokenService）：token自带用户信息和过期时间，用hmac签名，校验时不访问redis
+ * @author qrpop
+ */
+public interface LoginTokenService {
+
+    /**
+     * 登录成功后生成token
+     */
+    String issue(UserDTO user);
+
+    /**
+     * 根据token获取登录用户，token无效或过期返回null
+     */
+    UserDTO authenticate(String token);
+
+    /**
+     * 续期，返回客户端之后要使用的token，不能续期时返回null
+     */
+    String refresh(String token);
+
+    /**
+     * 登出，token立即失效
+     */
+    void revoke(String token);
+}
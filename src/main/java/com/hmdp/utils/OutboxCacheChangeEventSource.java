@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 轮询发件箱表tb_cache_outbox：按id顺序读取一批，回调后删除这些记录
+ * 发件箱记录和数据修改在同一个事务提交，所以事务提交后即使进程崩溃，缓存也会被删除
+ * @author qrpop
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.invalidation.source", havingValue = "outbox", matchIfMissing = true)
+public class OutboxCacheChangeEventSource implements CacheChangeEventSource {
+    private final CacheOutboxMapper cacheOutboxMapper;
+
+    @Value("${hmdp.cache.invalidation.poll-interval-millis:1000}")
+    private long pollIntervalMillis;
+    @Value("${hmdp.cache.invalidation.batch-size:100}")
+    private int batchSize;
+
+    private ScheduledExecutorService pollExecutor;
+
+    public OutboxCacheChangeEventSource(CacheOutboxMapper cacheOutboxMapper) {
+        this.cacheOutboxMapper = cacheOutboxMapper;
+    }
+
+    @Override
+    public void start(Consumer<String> keyHandler) {
+        pollExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cache-outbox-poller-", true));
+        pollExecutor.scheduleWithFixedDelay(() -> poll(keyHandler), pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (pollExecutor != null) {
+            pollExecutor.shutdownNow();
+        }
+    }
+
+    private void poll(Consumer<String> keyHandler) {
+        try {
+            List<CacheOutbox> records;
+            do {
+                records = cacheOutboxMapper.selectList(new QueryWrapper<CacheOutbox>().orderByAsc("id").last("limit " + batchSize));
+                if (records.isEmpty()) {
+                    return;
+                }
+                //同一批里重复的key只删除一次
+                records.stream().map(CacheOutbox::getCacheKey).distinct().forEach(keyHandler);
+                cacheOutboxMapper.deleteBatchIds(records.stream().map(CacheOutbox::getId).collect(Collectors.toList()));
+            } while (records.size() == batchSize);
+        } catch (Exception e) {
+            log.error("处理缓存发件箱失败", e);
+        }
+    }
+}
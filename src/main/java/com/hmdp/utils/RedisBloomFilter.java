@@ -0,0 +1,197 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 基于redis bitmap的布隆过滤器，本地保存一份位图副本
+ * 判断时先查本地副本，本地判断不存在时再到redis确认（防止其他实例刚添加的元素被误判为不存在），
+ * 所以只有真正不存在的元素才会访问redis，且只是一次getbit管道，不会写入空值，也不会查数据库
+ * @author qrpop
+ */
+public class RedisBloomFilter {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    /**
+     * 位图的位数和哈希函数个数，由预计元素个数和误判率计算
+     */
+    private final long numBits;
+    private final int numHashFunctions;
+
+    /**
+     * 本地位图副本，重建后整体替换
+     */
+    private volatile AtomicLongArray localBits;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        //m = -n*ln(p)/(ln2)^2   k = m/n*ln2
+        this.numBits = Math.max(64, (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.localBits = new AtomicLongArray(words(numBits));
+    }
+
+    /**
+     * 可能存在返回true，一定不存在返回false
+     */
+    public boolean mightContain(Object value) {
+        long[] offsets = offsets(value);
+        AtomicLongArray bits = localBits;
+        boolean local = true;
+        for (long offset : offsets) {
+            if (!getBit(bits, offset)) {
+                local = false;
+                break;
+            }
+        }
+        if (local) {
+            return true;
+        }
+        //本地不存在，到redis确认
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] rawKey = StrUtil.utf8Bytes(key);
+            for (long offset : offsets) {
+                connection.getBit(rawKey, offset);
+            }
+            return null;
+        });
+        for (Object result : results) {
+            if (!Boolean.TRUE.equals(result)) {
+                return false;
+            }
+        }
+        //其他实例添加的元素，补到本地副本
+        for (long offset : offsets) {
+            setBit(bits, offset);
+        }
+        return true;
+    }
+
+    /**
+     * 添加元素：先写redis再写本地
+     */
+    public void put(Object value) {
+        long[] offsets = offsets(value);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] rawKey = StrUtil.utf8Bytes(key);
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+        AtomicLongArray bits = localBits;
+        for (long offset : offsets) {
+            setBit(bits, offset);
+        }
+    }
+
+    /**
+     * redis中已经有位图时加载到本地，返回是否加载成功
+     */
+    public boolean load() {
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(StrUtil.utf8Bytes(key)));
+        if (bytes == null) {
+            return false;
+        }
+        localBits = fromBytes(bytes);
+        return true;
+    }
+
+    /**
+     * 重建：按id升序分页读取全部id，在本地生成新位图，写入临时key后rename替换，替换前后都不影响查询
+     * rename之后再补上重建期间新增的id（id自增，大于重建时最大id的就是新增的）
+     * @param pageLoader 查询id大于参数的下一页id，按id升序，没有更多时返回空列表
+     */
+    public void rebuild(Function<Long, List<Long>> pageLoader) {
+        AtomicLongArray bits = new AtomicLongArray(words(numBits));
+        long lastId = 0;
+        List<Long> ids;
+        while (!(ids = pageLoader.apply(lastId)).isEmpty()) {
+            for (Long id : ids) {
+                for (long offset : offsets(id)) {
+                    setBit(bits, offset);
+                }
+            }
+            lastId = ids.get(ids.size() - 1);
+        }
+        byte[] bytes = toBytes(bits);
+        String tmpKey = key + ":tmp";
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(StrUtil.utf8Bytes(tmpKey), bytes);
+            connection.rename(StrUtil.utf8Bytes(tmpKey), StrUtil.utf8Bytes(key));
+            return null;
+        });
+        localBits = bits;
+        while (!(ids = pageLoader.apply(lastId)).isEmpty()) {
+            for (Long id : ids) {
+                put(id);
+            }
+            lastId = ids.get(ids.size() - 1);
+        }
+    }
+
+    /**
+     * 双重哈希：用murmur128的两个64位结果模拟k个哈希函数 h1 + i*h2
+     */
+    private long[] offsets(Object value) {
+        long[] hash = MurmurHash.hash128(StrUtil.utf8Bytes(value.toString()));
+        long[] offsets = new long[numHashFunctions];
+        long combined = hash[0];
+        for (int i = 0; i < numHashFunctions; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private static int words(long numBits) {
+        return (int) ((numBits + 63) >>> 6);
+    }
+
+    private static boolean getBit(AtomicLongArray bits, long offset) {
+        return (bits.get((int) (offset >>> 6)) & (1L << (offset & 63))) != 0;
+    }
+
+    private static void setBit(AtomicLongArray bits, long offset) {
+        int index = (int) (offset >>> 6);
+        long mask = 1L << (offset & 63);
+        long word;
+        do {
+            word = bits.get(index);
+            if ((word & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(index, word, word | mask));
+    }
+
+    /**
+     * redis的bitmap中offset 0是第一个字节的最高位
+     */
+    private AtomicLongArray fromBytes(byte[] bytes) {
+        AtomicLongArray bits = new AtomicLongArray(words(numBits));
+        long max = Math.min(numBits, (long) bytes.length * 8);
+        for (long offset = 0; offset < max; offset++) {
+            if ((bytes[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) != 0) {
+                setBit(bits, offset);
+            }
+        }
+        return bits;
+    }
+
+    private byte[] toBytes(AtomicLongArray bits) {
+        byte[] bytes = new byte[(int) ((numBits + 7) >>> 3)];
+        for (long offset = 0; offset < numBits; offset++) {
+            if (getBit(bits, offset)) {
+                bytes[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+        return bytes;
+    }
+}
@@ -6,22 +6,60 @@ public class RedisConstants {
     public static final int LOGIN_CODE_LENGTH = 6;
     public static final String LOGIN_USER_TOKEN = "login:token:";
     public static final Long LOGIN_USER_TTL = 30L;
+    public static final String LOGIN_TOKEN_INVALIDATE_CHANNEL = "login:token:invalidate";
+    public static final String LOGIN_SESSION_KEY = "login:session:";
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKED_CHANNEL = "login:revoked";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop_type:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
     public static final int REDIS_LOCK_TTL = 10;
 
     public static final String LOCK_ORDER_PREFIX = "lock:order:";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_USER_KEY = "bloom:user";
+
+    public static final String ID_WORKER_KEY = "id:worker:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_FAILURE_KEY = "stream.orders.failures";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_COUNT_KEY = "blog:liked:count";
+    public static final String BLOG_LIKED_DIRTY_KEY = "blog:liked:dirty";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:flushing";
+    public static final String LOCK_BLOG_LIKED_FLUSH_KEY = "lock:blog:liked:flush";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String LOCK_BLOG_HOT_KEY = "lock:blog:hot";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:out:";
+    public static final String FEED_BIG_AUTHOR_KEY = "feed:big-authors";
+    public static final String FEED_PULL_SINCE_KEY = "feed:pull-since";
+    public static final String FOLLOWS_KEY = "follows:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_EMPTY_KEY = "shop:geo:empty:";
+    public static final String LOCK_SHOP_GEO_KEY = "lock:shop:geo:";
+    public static final Long LOCK_SHOP_GEO_TTL = 60L;
+    public static final String SHOP_SEARCH_REFRESH_CHANNEL = "shop:search:refresh";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String LOCK_SIGN_ARCHIVE_KEY = "lock:sign:archive";
 }
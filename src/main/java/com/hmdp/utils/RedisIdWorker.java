@@ -1,47 +1,124 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 生成全局唯一id
+ * incr模式：每个id一次redis incr
+ * segment模式：一次incrby预占一段序列号，在本地用AtomicLong无锁发放，快用完时后台预取下一段
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
-    /**
-     * 开始时间戳：2022.1.1.0：0：0 对应以秒技术的时间
-     */
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
+public class RedisIdWorker implements IdWorker {
     /**
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    /**
+     * 序列号key中的日期，DateTimeFormatter线程安全，不用每次都创建
+     */
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * id生成模式 incr/segment
+     */
+    @Value("${hmdp.id-worker.mode:incr}")
+    private String mode;
+    /**
+     * segment模式每次预占的序列号个数
+     */
+    @Value("${hmdp.id-worker.segment-size:1000}")
+    private int segmentSize;
+    /**
+     * 当前号段剩余比例低于该值时，后台预取下一段
+     */
+    @Value("${hmdp.id-worker.refill-ratio:0.2}")
+    private double refillRatio;
+
+    /**
+     * 每个业务前缀一个号段缓冲
+     */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+    /**
+     * 后台预取号段的线程
+     */
+    private final ExecutorService segmentRefillExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-refill-", true));
+
+    @PreDestroy
+    private void destroy() {
+        segmentRefillExecutor.shutdownNow();
+    }
+
     /**
      * 生成全局唯一id，返回id是一个64位的long型
      * id需要自增，用keyPrefix区分不同业务
      * @param keyPrefix
      * @return
      */
+    @Override
     public Long nextId(String keyPrefix){
         //1.生成时间戳 当前时间减去开始时间
         LocalDateTime now = LocalDateTime.now();
-        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
-        //2.生成序列号 利用redis的自增(先获取日期拼接到key：每天一个key，再自增；防止一直用同一个key，超过单个key的存储上限)
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long timeStamp = IdWorker.secondsOf(now);
+        //2.生成序列号
+        long count;
+        if (isSegmentMode()) {
+            //从本地号段取，号段和日期绑定，跨天后丢弃旧号段
+            count = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(now.toLocalDate());
+        } else {
+            //利用redis的自增(先获取日期拼接到key：每天一个key，再自增；防止一直用同一个key，超过单个key的存储上限)
+            count = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, now.toLocalDate()));
+        }
         //3.拼接返回
         return (timeStamp << COUNT_BITS) | count;
     }
 
+    /**
+     * 批量生成全局唯一id，一次incrby拿到count个连续的序列号
+     * @param keyPrefix
+     * @param count
+     * @return
+     */
+    @Override
+    public long[] nextIds(String keyPrefix, int count){
+        long[] ids = new long[count];
+        if (isSegmentMode()) {
+            //号段模式本地发放，不需要额外的redis调用
+            for (int i = 0; i < count; i++) {
+                ids[i] = nextId(keyPrefix);
+            }
+            return ids;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = IdWorker.secondsOf(now);
+        //incrby返回的是这一段序列号的最大值
+        Long end = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, now.toLocalDate()), count);
+        long begin = end - count + 1;
+        for (int i = 0; i < count; i++) {
+            ids[i] = (timeStamp << COUNT_BITS) | (begin + i);
+        }
+        return ids;
+    }
+
     /**
      * 获取2022.1.1.0：0：0 对应以秒技术的时间
      * @param args
@@ -50,4 +127,97 @@ public class RedisIdWorker {
 //        LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
 //        System.out.println(time.toEpochSecond(ZoneOffset.UTC));
 //    }
+
+    private boolean isSegmentMode() {
+        return "segment".equals(mode);
+    }
+
+    private static String sequenceKey(String keyPrefix, LocalDate date) {
+        return "icr:" + keyPrefix + ":" + date.format(DATE_FORMATTER);
+    }
+
+    /**
+     * 号段：某一天的序列号区间[begin, end]
+     */
+    private static class Segment {
+        private final LocalDate date;
+        private final long end;
+        private final AtomicLong cursor;
+        private final AtomicBoolean refillTriggered = new AtomicBoolean();
+
+        Segment(LocalDate date, long begin, long end) {
+            this.date = date;
+            this.end = end;
+            this.cursor = new AtomicLong(begin);
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段缓冲：当前号段 + 后台预取的下一个号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment prefetched;
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(LocalDate today) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(today)) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.end) {
+                        //剩余不多时只触发一次后台预取
+                        if (segment.end - value < segmentSize * refillRatio && segment.refillTriggered.compareAndSet(false, true)) {
+                            prefetch(today);
+                        }
+                        return value;
+                    }
+                }
+                //号段用完或者跨天，切换号段（只有一个线程切换，其他线程重新读取current）
+                synchronized (this) {
+                    if (current == segment) {
+                        current = takeOrFetch(today);
+                    }
+                }
+            }
+        }
+
+        private Segment takeOrFetch(LocalDate today) {
+            Segment next = prefetched;
+            if (next != null && next.date.equals(today)) {
+                prefetched = null;
+                return next;
+            }
+            //预取的号段还没到或者已经跨天，同步获取
+            return fetch(today);
+        }
+
+        private void prefetch(LocalDate today) {
+            if (!refilling.compareAndSet(false, true)) {
+                return;
+            }
+            segmentRefillExecutor.execute(() -> {
+                try {
+                    prefetched = fetch(today);
+                } catch (Exception e) {
+                    log.error("预取{}的id号段失败", keyPrefix, e);
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        }
+
+        /**
+         * incrby key segmentSize 预占一段序列号，各实例拿到的号段互不重叠
+         */
+        private Segment fetch(LocalDate date) {
+            Long end = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, date), segmentSize);
+            return new Segment(date, end - segmentSize + 1, end);
+        }
+    }
 }
@@ -1,15 +1,11 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 /**
  * 登陆拦截器 校验登陆状态
@@ -19,10 +15,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
      * LoginInterceptor不是spring管理的对象 不能用@Resource和@Autowired进行依赖注入
      * 要在使用LoginInterceptor的MvcConfig类中手动注入
      */
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginTokenService loginTokenService;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RefreshTokenInterceptor(LoginTokenService loginTokenService) {
+        this.loginTokenService = loginTokenService;
     }
 
 
@@ -41,18 +37,14 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if (StrUtil.isBlank(token)) {
             return true;
         }
-        //2.基于token获取redis中的用户信息
-        String tokenKey = RedisConstants.LOGIN_USER_TOKEN + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(tokenKey);
-        //3.判断用户是否存在(entries方法会做null判断，这里不用判断null)
-        if (userMap.isEmpty()) {
+        //2.基于token获取用户信息（redis模式先查本地会话缓存，未命中再查redis，同时按需刷新token有效期；signed模式本地验签）
+        UserDTO userDTO = loginTokenService.authenticate(token);
+        //3.判断用户是否存在
+        if (userDTO == null) {
             return true;
         }
-        //5.存在则将查询到的用户信息转为UserDto对象  存储到ThreadLocal
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        //4.存在则存储到ThreadLocal 放行
         UserHolder.saveUser(userDTO);
-        //6.刷新token有效期 放行
-        stringRedisTemplate.expire(tokenKey,RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
         return true;
     }
 
@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分片
+ * 一张秒杀券的库存拆成多个分片，每个分片的库存、已下单用户、订单队列用同一个hash tag {分片号}，
+ * 在redis cluster中落在同一个slot，lua脚本只操作一个slot；不同分片落在不同slot，分散到不同节点
+ * @author qrpop
+ */
+public class SeckillShardUtils {
+
+    /**
+     * 库存key seckill:stock:{voucherId}:{shard}
+     */
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + voucherId + ":{" + shard + "}";
+    }
+
+    /**
+     * 已下单用户key seckill:order:{voucherId}:{shard}
+     */
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + voucherId + ":{" + shard + "}";
+    }
+
+    /**
+     * 订单队列key stream.orders:{shard}
+     */
+    public static String streamKey(int shard) {
+        return SECKILL_ORDER_STREAM + ":{" + shard + "}";
+    }
+
+    public static List<String> streamKeys(int shards) {
+        List<String> streamKeys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            streamKeys.add(streamKey(i));
+        }
+        return streamKeys;
+    }
+
+    /**
+     * 用户所属的分片，同一个用户总是落在同一个分片，一人一单在这个分片的订单key上判断
+     */
+    public static int homeShard(Long userId, int shards) {
+        return Math.floorMod(userId.hashCode(), shards);
+    }
+
+    /**
+     * 把库存尽量均匀地拆到各个分片，余数分给前面的分片
+     */
+    public static int[] splitStock(int stock, int shards) {
+        int[] shardStocks = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            shardStocks[i] = stock / shards + (i < stock % shards ? 1 : 0);
+        }
+        return shardStocks;
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀券本地售罄标记
+ * lua脚本第一次报告所有分片都没有库存时标记售罄，并通过redis发布订阅通知其他实例，
+ * 之后的请求在本地直接返回库存不足，不再生成订单id、不再执行lua脚本
+ * 同时记录已知没有库存的分片，下单时跳过这些分片
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 售罄标记的复查时间，超过后放行请求重新到redis确认，兜底没有发通知的补库存
+     */
+    @Value("${hmdp.seckill.sold-out.recheck-seconds:60}")
+    private long recheckSeconds;
+
+    /**
+     * 已售罄的券 voucherId -> 标记时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    /**
+     * 已知没有库存的分片 voucherId -> 分片号
+     */
+    private final Map<Long, Set<Integer>> emptyShards = new ConcurrentHashMap<>();
+
+    public SeckillSoldOutRegistry(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> soldOut.putIfAbsent(parseVoucherId(message), System.currentTimeMillis()),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> resetLocally(parseVoucherId(message)),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    /**
+     * 是否已售罄，纯本地判断
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt > TimeUnit.SECONDS.toMillis(recheckSeconds)) {
+            //标记过期，清掉后让请求到redis重新确认
+            if (soldOut.remove(voucherId, markedAt)) {
+                emptyShards.remove(voucherId);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isShardEmpty(Long voucherId, int shard) {
+        Set<Integer> shards = emptyShards.get(voucherId);
+        return shards != null && shards.contains(shard);
+    }
+
+    public void markShardEmpty(Long voucherId, int shard) {
+        emptyShards.computeIfAbsent(voucherId, id -> ConcurrentHashMap.newKeySet()).add(shard);
+    }
+
+    /**
+     * 标记售罄，本实例第一次标记时通知其他实例
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.putIfAbsent(voucherId, System.currentTimeMillis()) == null) {
+            log.debug("秒杀券{}已售罄", voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 补充库存后清除售罄标记，并通知其他实例
+     */
+    public void reset(Long voucherId) {
+        resetLocally(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    private void resetLocally(Long voucherId) {
+        soldOut.remove(voucherId);
+        emptyShards.remove(voucherId);
+    }
+
+    private static Long parseVoucherId(Message message) {
+        return Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+}
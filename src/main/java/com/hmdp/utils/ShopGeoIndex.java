@@ -0,0 +1,232 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Metrics;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺地理位置索引：每个店铺类型一个geo key shop:geo:{typeId}，member是店铺id
+ * 启动预热时随店铺一起写入，新增、修改店铺时同步；某个类型的key不存在时查询前从数据库加载
+ * 加载时本实例同一类型只有一个线程执行，多个实例之间用互斥锁；没有坐标的类型写入一个空标记，不会每次都查数据库
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ShopMapper shopMapper;
+
+    private static final long LOAD_RETRY_MILLIS = 50;
+    private static final int LOAD_MAX_RETRIES = 20;
+
+    @Value("${hmdp.geo.page-size:1000}")
+    private int pageSize;
+    /**
+     * 一次查询最多取出的店铺数，限制翻页很深时georadius的count
+     */
+    @Value("${hmdp.geo.max-results:1000}")
+    private long maxResults;
+
+    /**
+     * 本实例正在加载的类型，同一类型的其他请求等待同一次加载
+     */
+    private final Map<Long, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
+
+    public ShopGeoIndex(StringRedisTemplate stringRedisTemplate, ShopMapper shopMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shopMapper = shopMapper;
+    }
+
+    /**
+     * 一次管道写入一批店铺的坐标，没有坐标或类型的店铺跳过
+     */
+    public void addAll(List<Shop> shops) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : shops) {
+                if (hasLocation(shop)) {
+                    connection.geoAdd((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                            new Point(shop.getX(), shop.getY()), shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+    }
+
+    public void add(Shop shop) {
+        if (hasLocation(shop)) {
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), shop.getId().toString());
+        }
+    }
+
+    /**
+     * 修改店铺后同步坐标和类型，在事务提交后执行，没有事务时立即执行
+     * @param oldTypeId 修改前的店铺类型，类型变了要从原来的geo key中删除
+     */
+    public void syncAfterCommit(Long shopId, Long oldTypeId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            sync(shopId, oldTypeId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                sync(shopId, oldTypeId);
+            }
+        });
+    }
+
+    private void sync(Long shopId, Long oldTypeId) {
+        try {
+            Shop shop = shopMapper.selectById(shopId);
+            if (oldTypeId != null && (shop == null || !Objects.equals(oldTypeId, shop.getTypeId()))) {
+                stringRedisTemplate.opsForZSet().remove(SHOP_GEO_KEY + oldTypeId, shopId.toString());
+            }
+            if (shop != null) {
+                add(shop);
+            }
+        } catch (Exception e) {
+            log.error("同步店铺{}的地理位置失败", shopId, e);
+        }
+    }
+
+    /**
+     * 查询某个类型下距离(x,y)最近的店铺，按距离升序，最多返回limit个（不超过max-results）
+     * georadius（当前redis客户端版本不支持geosearch，效果相同）
+     */
+    public GeoResults<RedisGeoCommands.GeoLocation<String>> search(Long typeId, double x, double y, double radiusMeters, long limit) {
+        String key = SHOP_GEO_KEY + typeId;
+        if (!isLoaded(typeId)) {
+            loadOnce(typeId);
+        }
+        return stringRedisTemplate.opsForGeo().radius(key,
+                new Circle(new Point(x, y), new Distance(radiusMeters, Metrics.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(Math.min(limit, maxResults)));
+    }
+
+    /**
+     * geo key或者空标记存在，一次exists
+     */
+    private boolean isLoaded(Long typeId) {
+        Long count = stringRedisTemplate.countExistingKeys(Arrays.asList(SHOP_GEO_KEY + typeId, SHOP_GEO_EMPTY_KEY + typeId));
+        return count != null && count > 0;
+    }
+
+    /**
+     * 本实例同一类型只有一个线程加载，其他线程等待它完成
+     */
+    private void loadOnce(Long typeId) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> running = loading.putIfAbsent(typeId, future);
+        if (running != null) {
+            running.join();
+            return;
+        }
+        try {
+            loadWithMutex(typeId);
+            future.complete(null);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(typeId, future);
+        }
+    }
+
+    /**
+     * 多个实例之间用互斥锁，只有一个实例查数据库；没抢到锁的等它加载完，一直没等到时本次返回空结果
+     */
+    private void loadWithMutex(Long typeId) {
+        String lockKey = LOCK_SHOP_GEO_KEY + typeId;
+        for (int i = 0; i < LOAD_MAX_RETRIES; i++) {
+            Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", LOCK_SHOP_GEO_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(locked)) {
+                try {
+                    //DoubleCheck，可能其他实例刚加载完
+                    if (!isLoaded(typeId)) {
+                        load(typeId);
+                    }
+                } finally {
+                    stringRedisTemplate.delete(lockKey);
+                }
+                return;
+            }
+            try {
+                Thread.sleep(LOAD_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            if (isLoaded(typeId)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从数据库加载一个类型的店铺坐标，按id分页写入临时key后合并到正式key，其他请求不会看到一半的数据
+     * 这个类型没有带坐标的店铺时写入空标记，过期后再查数据库
+     */
+    private void load(Long typeId) {
+        long begin = System.currentTimeMillis();
+        String key = SHOP_GEO_KEY + typeId;
+        String tmpKey = key + ":tmp";
+        byte[] rawTmpKey = tmpKey.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.delete(tmpKey);
+        long lastId = 0;
+        long count = 0;
+        List<Shop> shops;
+        while (!(shops = shopMapper.selectList(new QueryWrapper<Shop>().select("id", "type_id", "x", "y")
+                .eq("type_id", typeId).gt("id", lastId).orderByAsc("id").last("limit " + pageSize))).isEmpty()) {
+            List<Shop> page = shops;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Shop shop : page) {
+                    if (hasLocation(shop)) {
+                        connection.geoAdd(rawTmpKey, new Point(shop.getX(), shop.getY()), shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return null;
+            });
+            count += shops.stream().filter(ShopGeoIndex::hasLocation).count();
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        if (count == 0) {
+            stringRedisTemplate.opsForValue().set(SHOP_GEO_EMPTY_KEY + typeId, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+        } else {
+            //加载期间新增的店铺可能已经写入正式key，合并而不是rename覆盖；geo的分数是坐标编码，取max不能相加
+            stringRedisTemplate.opsForZSet().unionAndStore(tmpKey, Collections.singletonList(key), key,
+                    RedisZSetCommands.Aggregate.MAX, RedisZSetCommands.Weights.fromSetCount(2));
+            stringRedisTemplate.delete(tmpKey);
+        }
+        log.info("店铺类型{}的地理位置加载完成，店铺{}个，耗时{}ms", typeId, count, System.currentTimeMillis() - begin);
+    }
+
+    private static boolean hasLocation(Shop shop) {
+        return shop.getId() != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+    }
+}
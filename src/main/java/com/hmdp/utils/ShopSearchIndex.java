@@ -0,0 +1,308 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SHOP_SEARCH_REFRESH_CHANNEL;
+
+/**
+ * 店铺名称的本地倒排索引，代替 like '%name%' 全表扫描
+ * 名称转小写后切成单字和相邻两字（中文名称没有空格分词，用n-gram），每个词 -> 包含它的店铺id；
+ * 查询时对关键字的每个词求交集，再校验名称确实包含关键字，空格和标点原样参与匹配，结果和不区分大小写的 like '%name%' 一致，
+ * 按 完全相同 > 前缀 > 包含、关键字占名称的比例 排序
+ * 启动后从数据库构建，新增、修改店铺后通过redis广播让所有实例从数据库重新读取该店铺；构建完成前调用方走数据库
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class ShopSearchIndex {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ShopMapper shopMapper;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.search.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.search.page-size:1000}")
+    private int pageSize;
+    @Value("${hmdp.search.rebuild-interval-hours:24}")
+    private long rebuildIntervalHours;
+
+    /**
+     * 词 -> 店铺id
+     */
+    private volatile Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+    /**
+     * 店铺id -> 名称，normalized是归一化之后的名称
+     */
+    private volatile Map<Long, String> names = new ConcurrentHashMap<>();
+    private volatile Map<Long, String> normalized = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    private ScheduledExecutorService searchIndexExecutor;
+
+    public ShopSearchIndex(StringRedisTemplate stringRedisTemplate, ShopMapper shopMapper,
+                           RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shopMapper = shopMapper;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        searchIndexExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shop-search-index-", true));
+        //任意实例修改了店铺，所有实例重新读取该店铺
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> searchIndexExecutor.execute(() -> reload(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)))),
+                new ChannelTopic(SHOP_SEARCH_REFRESH_CHANNEL));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!enabled) {
+            return;
+        }
+        searchIndexExecutor.execute(this::rebuild);
+        //定时全量重建，兜底丢失的广播
+        searchIndexExecutor.scheduleWithFixedDelay(this::rebuild, rebuildIntervalHours, rebuildIntervalHours, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (searchIndexExecutor != null) {
+            searchIndexExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 搜索名称包含关键字的店铺，按相关度排序，返回第from个开始的最多size个店铺id
+     */
+    public List<Long> search(String keyword, int from, int size) {
+        String query = normalize(keyword);
+        if (query.isEmpty() || size <= 0) {
+            return Collections.emptyList();
+        }
+        from = Math.max(from, 0);
+        //1.关键字每个词的倒排列表求交集，从最短的列表开始
+        List<Set<Long>> lists = new ArrayList<>();
+        for (String gram : grams(query)) {
+            Set<Long> ids = postings.get(gram);
+            if (ids == null) {
+                return Collections.emptyList();
+            }
+            lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        //2.校验名称包含关键字，只保留前 from + size 个（小顶堆），结果数量多时不用全部排序
+        int limit = from + size;
+        Comparator<Hit> order = Comparator.comparingInt((Hit hit) -> hit.rank).thenComparingDouble(hit -> hit.coverage)
+                .thenComparing(hit -> -hit.id);
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1, order);
+        Map<Long, String> normalizedNames = normalized;
+        candidates:
+        for (Long id : lists.get(0)) {
+            for (int i = 1; i < lists.size(); i++) {
+                if (!lists.get(i).contains(id)) {
+                    continue candidates;
+                }
+            }
+            String name = normalizedNames.get(id);
+            if (name == null || !name.contains(query)) {
+                continue;
+            }
+            int rank = name.equals(query) ? 3 : name.startsWith(query) ? 2 : 1;
+            top.offer(new Hit(id, rank, (double) query.length() / name.length()));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        //3.按相关度从高到低返回当前页
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(order.reversed());
+        List<Long> ids = new ArrayList<>(size);
+        for (int i = from; i < hits.size(); i++) {
+            ids.add(hits.get(i).id);
+        }
+        return ids;
+    }
+
+    /**
+     * 自动补全：相关度最高的limit个店铺的id和名称
+     */
+    public List<Shop> suggest(String prefix, int limit) {
+        List<Shop> shops = new ArrayList<>(limit);
+        for (Long id : search(prefix, 0, limit)) {
+            String name = names.get(id);
+            if (name != null) {
+                shops.add(new Shop().setId(id).setName(name));
+            }
+        }
+        return shops;
+    }
+
+    /**
+     * 新增、修改店铺后通知所有实例重新读取该店铺，有事务时在提交后通知
+     */
+    public void refreshAfterCommit(Long shopId) {
+        if (!enabled) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            stringRedisTemplate.convertAndSend(SHOP_SEARCH_REFRESH_CHANNEL, shopId.toString());
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                stringRedisTemplate.convertAndSend(SHOP_SEARCH_REFRESH_CHANNEL, shopId.toString());
+            }
+        });
+    }
+
+    /**
+     * 从数据库重新读取一个店铺的名称，店铺不存在时从索引中删除
+     */
+    private void reload(Long shopId) {
+        try {
+            Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>().select("id", "name").eq("id", shopId));
+            synchronized (this) {
+                remove(shopId);
+                if (shop != null) {
+                    add(postings, names, normalized, shop);
+                }
+            }
+        } catch (Exception e) {
+            log.error("刷新店铺{}的搜索索引失败", shopId, e);
+        }
+    }
+
+    /**
+     * 全量重建：按id分页读取店铺名称构建新索引，构建完成后整体替换
+     */
+    private void rebuild() {
+        try {
+            long begin = System.currentTimeMillis();
+            Map<String, Set<Long>> newPostings = new ConcurrentHashMap<>();
+            Map<Long, String> newNames = new ConcurrentHashMap<>();
+            Map<Long, String> newNormalized = new ConcurrentHashMap<>();
+            long lastId = 0;
+            List<Shop> shops;
+            while (!(shops = shopMapper.selectList(new QueryWrapper<Shop>().select("id", "name")
+                    .gt("id", lastId).orderByAsc("id").last("limit " + pageSize))).isEmpty()) {
+                for (Shop shop : shops) {
+                    add(newPostings, newNames, newNormalized, shop);
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            synchronized (this) {
+                postings = newPostings;
+                names = newNames;
+                normalized = newNormalized;
+            }
+            ready = true;
+            log.info("店铺搜索索引构建完成，店铺{}个，词{}个，耗时{}ms", newNames.size(), newPostings.size(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺搜索索引构建失败", e);
+        }
+    }
+
+    private static void add(Map<String, Set<Long>> postings, Map<Long, String> names, Map<Long, String> normalized, Shop shop) {
+        if (shop.getName() == null) {
+            return;
+        }
+        String name = normalize(shop.getName());
+        names.put(shop.getId(), shop.getName());
+        normalized.put(shop.getId(), name);
+        for (String gram : indexGrams(name)) {
+            postings.computeIfAbsent(gram, g -> ConcurrentHashMap.newKeySet()).add(shop.getId());
+        }
+    }
+
+    private void remove(Long shopId) {
+        names.remove(shopId);
+        String name = normalized.remove(shopId);
+        if (name == null) {
+            return;
+        }
+        for (String gram : indexGrams(name)) {
+            Set<Long> ids = postings.get(gram);
+            if (ids != null) {
+                ids.remove(shopId);
+            }
+        }
+    }
+
+    /**
+     * 归一化：只转小写（和数据库默认的不区分大小写排序规则一致），不去掉空格和标点，否则会搜出like匹配不到的店铺
+     */
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 建索引的词：所有单字和相邻两字
+     */
+    private static Set<String> indexGrams(String name) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i < name.length(); i++) {
+            grams.add(name.substring(i, i + 1));
+            if (i + 1 < name.length()) {
+                grams.add(name.substring(i, i + 2));
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * 查询的词：一个字的关键字用单字，否则用相邻两字
+     */
+    private static Set<String> grams(String query) {
+        if (query.length() == 1) {
+            return Collections.singleton(query);
+        }
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 1 < query.length(); i++) {
+            grams.add(query.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    private static class Hit {
+        private final long id;
+        private final int rank;
+        private final double coverage;
+
+        Hit(long id, int rank, double coverage) {
+            this.id = id;
+            this.rank = rank;
+            this.coverage = coverage;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.service.ISignService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SIGN_ARCHIVE_KEY;
+import static com.hmdp.utils.RedisConstants.USER_SIGN_KEY;
+
+/**
+ * 签到位图归档：定时scan出已经结束的月份的位图，写入tb_sign后给位图设置过期时间
+ * 设置了过期时间的位图表示已归档，不再重复归档；保留一段时间后过期，之后连续签到统计从tb_sign读取这个月
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class SignArchiver {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISignService signService;
+
+    @Value("${hmdp.sign.archive-interval-hours:24}")
+    private long archiveIntervalHours;
+    /**
+     * 归档后位图在redis中保留的天数
+     */
+    @Value("${hmdp.sign.retain-days:40}")
+    private long retainDays;
+
+    private ScheduledExecutorService archiveExecutor;
+
+    @PostConstruct
+    private void init() {
+        archiveExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sign-archive-", true));
+        archiveExecutor.scheduleWithFixedDelay(this::archive, 1, archiveIntervalHours, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        archiveExecutor.shutdownNow();
+    }
+
+    /**
+     * 归档所有已经结束、还没归档的月份，同一时间只有一个实例归档
+     */
+    public void archive() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_SIGN_ARCHIVE_KEY, "1", 1, TimeUnit.HOURS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            YearMonth currentMonth = YearMonth.now();
+            int archived = 0;
+            for (String key : scanSignKeys()) {
+                Long userId = SignKeyUtils.userId(key);
+                YearMonth month = SignKeyUtils.month(key);
+                //本月还在签到，已经设置过期时间的已归档
+                if (userId == null || !month.isBefore(currentMonth) || !Long.valueOf(-1).equals(stringRedisTemplate.getExpire(key))) {
+                    continue;
+                }
+                try {
+                    signService.archiveMonth(userId, month);
+                    stringRedisTemplate.expire(key, retainDays, TimeUnit.DAYS);
+                    archived++;
+                } catch (Exception e) {
+                    log.error("归档签到记录{}失败，下次重试", key, e);
+                }
+            }
+            log.info("签到记录归档完成，归档{}个用户月份，耗时{}ms", archived, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("签到记录归档失败", e);
+        } finally {
+            stringRedisTemplate.delete(LOCK_SIGN_ARCHIVE_KEY);
+        }
+    }
+
+    /**
+     * scan遍历签到位图的key，不阻塞redis
+     */
+    private List<String> scanSignKeys() {
+        List<String> keys = new ArrayList<>();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions().match(USER_SIGN_KEY + "*").count(1000).build())) {
+                cursor.forEachRemaining(rawKey -> keys.add(new String(rawKey, StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        });
+        return keys;
+    }
+}
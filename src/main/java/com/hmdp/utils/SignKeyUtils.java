@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+
+import static com.hmdp.utils.RedisConstants.USER_SIGN_KEY;
+
+/**
+ * 签到位图key sign:{userId}:{yyyyMM}，每个用户每月一个位图，第n天对应偏移量n-1
+ * @author qrpop
+ */
+public class SignKeyUtils {
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
+    public static String signKey(Long userId, YearMonth month) {
+        return USER_SIGN_KEY + userId + ":" + month.format(MONTH_FORMATTER);
+    }
+
+    /**
+     * 从key中解析用户id，格式不对返回null
+     */
+    public static Long userId(String key) {
+        String[] parts = key.split(":");
+        return parts.length == 3 ? Long.valueOf(parts[1]) : null;
+    }
+
+    /**
+     * 从key中解析月份，格式不对返回null
+     */
+    public static YearMonth month(String key) {
+        String[] parts = key.split(":");
+        return parts.length == 3 ? YearMonth.parse(parts[2], MONTH_FORMATTER) : null;
+    }
+
+    public static YearMonth parseMonth(String month) {
+        return YearMonth.parse(month, MONTH_FORMATTER);
+    }
+}
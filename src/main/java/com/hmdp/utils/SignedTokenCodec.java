@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * 自带用户信息的签名token：base64url(载荷).base64url(hmac-sha256(载荷))
+ * 载荷是紧凑的二进制：版本 + 会话id + 用户id + 过期时间（秒） + 昵称 + 头像
+ * 校验只有一次hmac和一次解码，不访问redis
+ * @author qrpop
+ */
+public class SignedTokenCodec {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte VERSION = 1;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    /**
+     * Mac不是线程安全的，每个线程一个，doFinal之后自动重置可以复用
+     */
+    private final ThreadLocal<Mac> macs;
+
+    public SignedTokenCodec(byte[] secret) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    public String encode(Claims claims) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(claims.getSessionId());
+            out.writeLong(claims.getUserId());
+            out.writeLong(claims.getExpireAt());
+            out.writeUTF(claims.getNickName() == null ? "" : claims.getNickName());
+            out.writeUTF(claims.getIcon() == null ? "" : claims.getIcon());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(macs.get().doFinal(payload));
+    }
+
+    /**
+     * 校验签名并解码，格式不对或者签名不一致返回null，不检查过期时间
+     */
+    public Claims decode(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        //常量时间比较，防止按响应时间猜签名
+        if (!MessageDigest.isEqual(macs.get().doFinal(payload), signature)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            long sessionId = in.readLong();
+            long userId = in.readLong();
+            long expireAt = in.readLong();
+            String nickName = in.readUTF();
+            String icon = in.readUTF();
+            return new Claims(sessionId, userId, expireAt, nickName.isEmpty() ? null : nickName, icon.isEmpty() ? null : icon);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * token中的信息
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Claims {
+        /**
+         * 会话id，一次登录一个，续期时不变，登出时吊销
+         */
+        private final long sessionId;
+        private final long userId;
+        /**
+         * 过期时间，epoch秒
+         */
+        private final long expireAt;
+        private final String nickName;
+        private final String icon;
+    }
+}
@@ -0,0 +1,191 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 无状态签名token（hmdp.login.mode=signed）
+ * 每个请求只在本地校验签名、过期时间和吊销列表，不访问redis；
+ * redis中只有两样东西：会话 login:session:{sessionId}（决定能否续期，每次续期顺延），
+ * 和吊销集合 login:revoked（登出的会话id，分数是最后一个token的过期时间，过期后清理），吊销集合通过广播 + 定时全量同步到本地
+ * @author qrpop
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.login.mode", havingValue = "signed")
+public class SignedTokenService implements LoginTokenService {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * hmac密钥，所有实例相同，至少32字节
+     */
+    @Value("${hmdp.login.signed.secret:}")
+    private String secret;
+    /**
+     * token有效期，过期后用旧token续期
+     */
+    @Value("${hmdp.login.signed.access-ttl-minutes:15}")
+    private long accessTtlMinutes;
+    /**
+     * 会话有效期，这段时间内没有续期需要重新登录
+     */
+    @Value("${hmdp.login.signed.session-ttl-days:7}")
+    private long sessionTtlDays;
+    @Value("${hmdp.login.signed.revoked-sync-seconds:30}")
+    private long revokedSyncSeconds;
+
+    private SignedTokenCodec codec;
+    /**
+     * 本地的吊销列表 会话id -> 过期时间（epoch秒）
+     */
+    private volatile Map<Long, Long> revoked = new ConcurrentHashMap<>();
+    private ScheduledExecutorService revokedSyncExecutor;
+
+    public SignedTokenService(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.length(secret) < 32) {
+            throw new IllegalStateException("hmdp.login.signed.secret 至少32个字符");
+        }
+        codec = new SignedTokenCodec(secret.getBytes(StandardCharsets.UTF_8));
+        //其他实例登出时，加入本地吊销列表
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            revoked.put(Long.valueOf(parts[0]), Long.valueOf(parts[1]));
+        }, new ChannelTopic(LOGIN_REVOKED_CHANNEL));
+        syncRevoked();
+        revokedSyncExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("login-revoked-sync-", true));
+        revokedSyncExecutor.scheduleWithFixedDelay(this::syncRevoked, revokedSyncSeconds, revokedSyncSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        revokedSyncExecutor.shutdownNow();
+    }
+
+    /**
+     * 登录：创建会话，签发token
+     */
+    @Override
+    public String issue(UserDTO user) {
+        long sessionId = random.nextLong() & Long.MAX_VALUE;
+        stringRedisTemplate.opsForValue().set(LOGIN_SESSION_KEY + sessionId, user.getId().toString(), sessionTtlDays, TimeUnit.DAYS);
+        return sign(sessionId, user.getId(), user.getNickName(), user.getIcon());
+    }
+
+    /**
+     * 只做本地校验：签名、过期时间、吊销列表
+     */
+    @Override
+    public UserDTO authenticate(String token) {
+        SignedTokenCodec.Claims claims = codec.decode(token);
+        if (claims == null || claims.getExpireAt() < nowSeconds() || revoked.containsKey(claims.getSessionId())) {
+            return null;
+        }
+        UserDTO user = new UserDTO();
+        user.setId(claims.getUserId());
+        user.setNickName(claims.getNickName());
+        user.setIcon(claims.getIcon());
+        return user;
+    }
+
+    /**
+     * 续期：签名正确、会话没有吊销且还在redis中，顺延会话，签发新token（token可以已经过期）
+     */
+    @Override
+    public String refresh(String token) {
+        SignedTokenCodec.Claims claims = codec.decode(token);
+        if (claims == null || revoked.containsKey(claims.getSessionId())) {
+            return null;
+        }
+        Boolean alive = stringRedisTemplate.expire(LOGIN_SESSION_KEY + claims.getSessionId(), sessionTtlDays, TimeUnit.DAYS);
+        if (!Boolean.TRUE.equals(alive)) {
+            return null;
+        }
+        return sign(claims.getSessionId(), claims.getUserId(), claims.getNickName(), claims.getIcon());
+    }
+
+    /**
+     * 登出：删除会话，会话id加入吊销集合直到这个会话签发的token全部过期
+     */
+    @Override
+    public void revoke(String token) {
+        SignedTokenCodec.Claims claims = codec.decode(token);
+        if (claims == null) {
+            return;
+        }
+        long sessionId = claims.getSessionId();
+        //续期签发的token最晚在现在 + token有效期后过期
+        long expireAt = Math.max(claims.getExpireAt(), nowSeconds() + TimeUnit.MINUTES.toSeconds(accessTtlMinutes));
+        stringRedisTemplate.delete(LOGIN_SESSION_KEY + sessionId);
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, String.valueOf(sessionId), expireAt);
+        revoked.put(sessionId, expireAt);
+        stringRedisTemplate.convertAndSend(LOGIN_REVOKED_CHANNEL, sessionId + ":" + expireAt);
+    }
+
+    private String sign(long sessionId, long userId, String nickName, String icon) {
+        long expireAt = nowSeconds() + TimeUnit.MINUTES.toSeconds(accessTtlMinutes);
+        return codec.encode(new SignedTokenCodec.Claims(sessionId, userId, expireAt, nickName, icon));
+    }
+
+    /**
+     * 清理已经过期的吊销记录，全量同步到本地，兜底丢失的广播
+     */
+    private void syncRevoked() {
+        try {
+            long now = nowSeconds();
+            stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, 0, now);
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(LOGIN_REVOKED_KEY, now, Double.MAX_VALUE);
+            Map<Long, Long> latest = new ConcurrentHashMap<>();
+            if (tuples != null) {
+                for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                    latest.put(Long.valueOf(tuple.getValue()), tuple.getScore().longValue());
+                }
+            }
+            //同步期间收到的广播也保留
+            revoked.forEach((sessionId, expireAt) -> {
+                if (expireAt >= now) {
+                    latest.putIfAbsent(sessionId, expireAt);
+                }
+            });
+            revoked = latest;
+        } catch (Exception e) {
+            log.error("同步登录吊销列表失败", e);
+        }
+    }
+
+    private static long nowSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
@@ -0,0 +1,175 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 雪花算法生成全局唯一id，生成id时不访问redis
+ * 和RedisIdWorker相同的布局：高32位是秒级时间戳，低32位 = 1位雪花标记 + 9位workerId + 22位序列号
+ * 雪花标记位保证和incr生成的序列号（每天不会超过2^31）不冲突，两种模式可以切换
+ * workerId启动时从redis租用（set nx ex），后台定时续约
+ * @author qrpop
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.id-worker.mode", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdWorker {
+    private static final int COUNT_BITS = 32;
+    private static final int SEQUENCE_BITS = 22;
+    private static final int WORKER_ID_BITS = 9;
+    private static final long SNOWFLAKE_FLAG = 1L << (SEQUENCE_BITS + WORKER_ID_BITS);
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    /**
+     * workerId租约时长和续约间隔
+     */
+    private static final long LEASE_SECONDS = 60;
+    private static final long RENEW_SECONDS = 10;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("idWorkerRenew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 本实例的租约标识
+     */
+    private final String instanceId = UUID.randomUUID().toString(true);
+    private final ScheduledExecutorService renewExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("id-worker-renew-", true));
+
+    private volatile long workerId = -1;
+    /**
+     * 租约有效期，超过后不再发id，防止workerId已经被其他实例租走
+     */
+    private volatile long leaseValidUntil;
+    private long lastSecond = -1;
+    /**
+     * 上一次读到的时钟秒数，序列号用完借用下一秒时lastSecond会超前于时钟，不能用它判断回拨
+     */
+    private long lastClockSecond = -1;
+    private long sequence;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    public void start() {
+        lease();
+        renewExecutor.scheduleWithFixedDelay(this::renew, RENEW_SECONDS, RENEW_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        renewExecutor.shutdownNow();
+        //主动释放workerId（和unlock.lua一样只删除自己持有的）
+        if (workerId >= 0) {
+            String key = ID_WORKER_KEY + workerId;
+            if (instanceId.equals(stringRedisTemplate.opsForValue().get(key))) {
+                stringRedisTemplate.delete(key);
+            }
+        }
+    }
+
+    @Override
+    public synchronized Long nextId(String keyPrefix) {
+        if (System.currentTimeMillis() > leaseValidUntil) {
+            throw new IllegalStateException("workerId租约已失效，暂停生成id");
+        }
+        //和RedisIdWorker用同一个时间源，两种模式切换时id的时间部分一致
+        long now = IdWorker.secondsOf(LocalDateTime.now());
+        if (now < lastClockSecond) {
+            //只在时钟真的回拨时告警，每次回拨告警一次
+            log.warn("时钟回拨{}秒", lastClockSecond - now);
+        }
+        lastClockSecond = now;
+        if (now < lastSecond) {
+            //时钟回拨或者借用了下一秒：沿用上一次的秒数继续发号，保证单调递增不重复
+            now = lastSecond;
+        }
+        if (now == lastSecond) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                //这一秒的序列号用完，借用下一秒
+                now = lastSecond + 1;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastSecond = now;
+        return (now << COUNT_BITS) | SNOWFLAKE_FLAG | (workerId << SEQUENCE_BITS) | sequence;
+    }
+
+    @Override
+    public long[] nextIds(String keyPrefix, int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = nextId(keyPrefix);
+        }
+        return ids;
+    }
+
+    /**
+     * 租用workerId：从随机位置开始 set id:worker:n instanceId nx ex 60
+     */
+    private void lease() {
+        int start = ThreadLocalRandom.current().nextInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long candidate = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + candidate, instanceId, LEASE_SECONDS, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                workerId = candidate;
+                leaseValidUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LEASE_SECONDS);
+                log.info("租用workerId={}", candidate);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    /**
+     * 续约，续约失败（key过期被别人租走）时重新租用
+     */
+    private void renew() {
+        try {
+            long renewAt = System.currentTimeMillis();
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + workerId),
+                    instanceId, String.valueOf(LEASE_SECONDS));
+            if (result != null && result == 1) {
+                leaseValidUntil = renewAt + TimeUnit.SECONDS.toMillis(LEASE_SECONDS);
+                return;
+            }
+            log.warn("workerId={}租约丢失，重新租用", workerId);
+            synchronized (this) {
+                lease();
+            }
+        } catch (Exception e) {
+            //redis不可用时保留当前workerId，直到租约到期
+            log.error("workerId={}续约失败", workerId, e);
+        }
+    }
+}
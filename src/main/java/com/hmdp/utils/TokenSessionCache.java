@@ -0,0 +1,173 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.lang.UUID;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 登录token的本地会话缓存
+ * token -> 用户信息在本地缓存，命中时不访问redis；token的有效期每个token最多每隔refresh-interval刷新一次，
+ * 刷新时expire的返回值同时校验token还在redis中；本地未命中时hgetall和expire放在一个管道里，一次往返
+ * 登出时删除redis中的token并广播，所有实例清除本地缓存
+ * @author qrpop
+ */
+@Slf4j
+@Component
+public class TokenSessionCache implements LoginTokenService {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.login.session-cache.enabled:true}")
+    private boolean enabled;
+    /**
+     * 本地会话空闲多久后清除，实际取它和refresh-interval中较大的一个，
+     * 否则会话在刷新之前就被清除，每次都要hgetall；登出广播丢失时本地会话最多多存活一个refresh-interval
+     */
+    @Value("${hmdp.login.session-cache.ttl-seconds:60}")
+    private long ttlSeconds;
+    @Value("${hmdp.login.session-cache.maximum-size:100000}")
+    private long maximumSize;
+    /**
+     * 同一个token两次刷新有效期的最小间隔，要比token有效期短
+     */
+    @Value("${hmdp.login.session-cache.refresh-interval-minutes:5}")
+    private long refreshIntervalMinutes;
+
+    private Cache<String, Session> sessions;
+
+    public TokenSessionCache(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        long idleSeconds = Math.max(ttlSeconds, TimeUnit.MINUTES.toSeconds(refreshIntervalMinutes));
+        sessions = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(idleSeconds, TimeUnit.SECONDS)
+                .build();
+        //其他实例登出时，清除本实例的本地会话
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> sessions.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOGIN_TOKEN_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 生成随机token，用户信息以hash存储在redis中
+     */
+    @Override
+    public String issue(UserDTO user) {
+        //1.生成token，作为登陆令牌（用户数据的key）
+        String token = UUID.randomUUID().toString(true);
+        //2.将user数据转为hashMap    将map内数据都转为string类型 防止 stringRedisTemplate报错
+        Map<String, Object> userMap = BeanUtil.beanToMap(user, new HashMap<>(),
+                CopyOptions.create()
+                        .setIgnoreNullValue(true)
+                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
+        //3.存储为hash，给token设置有效期(要在拦截器中更新token有效期，防止在使用中过期)
+        String tokenKey = LOGIN_USER_TOKEN + token;
+        stringRedisTemplate.opsForHash().putAll(tokenKey, userMap);
+        stringRedisTemplate.expire(tokenKey, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        return token;
+    }
+
+    /**
+     * 根据token获取登录用户，token无效返回null
+     */
+    @Override
+    public UserDTO authenticate(String token) {
+        String tokenKey = LOGIN_USER_TOKEN + token;
+        long now = System.currentTimeMillis();
+        //1.本地命中，距离上次刷新超过间隔才刷新有效期
+        Session session = enabled ? sessions.getIfPresent(token) : null;
+        if (session != null) {
+            if (now - session.refreshedAt < TimeUnit.MINUTES.toMillis(refreshIntervalMinutes)) {
+                return session.user;
+            }
+            if (!Boolean.TRUE.equals(stringRedisTemplate.expire(tokenKey, LOGIN_USER_TTL, TimeUnit.MINUTES))) {
+                //token在redis中已经不存在（过期或者登出广播丢失）
+                sessions.invalidate(token);
+                return null;
+            }
+            session.refreshedAt = now;
+            return session.user;
+        }
+        //2.本地未命中，hgetall和expire一次管道
+        byte[] rawKey = tokenKey.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hGetAll(rawKey);
+            connection.expire(rawKey, TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL));
+            return null;
+        });
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> userMap = (Map<Object, Object>) results.get(0);
+        if (userMap == null || userMap.isEmpty()) {
+            return null;
+        }
+        UserDTO user = toUser(userMap);
+        if (enabled) {
+            sessions.put(token, new Session(user, now));
+        }
+        return user;
+    }
+
+    /**
+     * 有效期在每次访问时已经刷新，token不变
+     */
+    @Override
+    public String refresh(String token) {
+        return authenticate(token) == null ? null : token;
+    }
+
+    /**
+     * 登出：删除redis中的token，通知所有实例清除本地会话
+     */
+    @Override
+    public void revoke(String token) {
+        stringRedisTemplate.delete(LOGIN_USER_TOKEN + token);
+        sessions.invalidate(token);
+        stringRedisTemplate.convertAndSend(LOGIN_TOKEN_INVALIDATE_CHANNEL, token);
+    }
+
+    /**
+     * hash -> UserDTO，字段固定，不用反射
+     */
+    private static UserDTO toUser(Map<Object, Object> userMap) {
+        UserDTO user = new UserDTO();
+        Object id = userMap.get("id");
+        user.setId(id == null ? null : Long.valueOf(id.toString()));
+        user.setNickName((String) userMap.get("nickName"));
+        user.setIcon((String) userMap.get("icon"));
+        return user;
+    }
+
+    private static class Session {
+        private final UserDTO user;
+        private volatile long refreshedAt;
+
+        Session(UserDTO user, long refreshedAt) {
+            this.user = user;
+            this.refreshedAt = refreshedAt;
+        }
+    }
+}
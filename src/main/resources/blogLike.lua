@@ -0,0 +1,25 @@
+---
+--- 点赞/取消点赞
+--- KEYS[1] 点赞用户集合 blog:liked:{blogId}，KEYS[2] 点赞数hash，KEYS[3] 待刷盘的博文集合，KEYS[4] 热门排行榜
+--- ARGV[1] 博文id，ARGV[2] 用户id
+--- 点赞数还没从数据库初始化时返回nil，由调用方hsetnx初始值后重试
+---
+if redis.call('hexists', KEYS[2], ARGV[1]) == 0 then
+    return false
+end
+--1.用户点过赞就取消，没点过就点赞
+local delta = 1
+if redis.call('sismember', KEYS[1], ARGV[2]) == 1 then
+    redis.call('srem', KEYS[1], ARGV[2])
+    delta = -1
+else
+    redis.call('sadd', KEYS[1], ARGV[2])
+end
+--2.更新点赞数，标记待刷盘
+local count = redis.call('hincrby', KEYS[2], ARGV[1], delta)
+redis.call('sadd', KEYS[3], ARGV[1])
+--3.更新热门排行榜，不在排行榜中的博文等下次重建
+if redis.call('zscore', KEYS[4], ARGV[1]) then
+    redis.call('zincrby', KEYS[4], delta, ARGV[1])
+end
+return {delta, count}
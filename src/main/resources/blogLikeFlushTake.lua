@@ -0,0 +1,12 @@
+---
+--- 取出待刷盘的博文：把待刷盘集合rename成刷盘中集合，之后的点赞写入新的待刷盘集合
+--- 刷盘中集合还在说明上次刷盘没有完成（实例崩溃），直接重新刷这一批
+--- KEYS[1] 待刷盘集合，KEYS[2] 刷盘中集合
+---
+if redis.call('exists', KEYS[2]) == 0 then
+    if redis.call('exists', KEYS[1]) == 0 then
+        return {}
+    end
+    redis.call('rename', KEYS[1], KEYS[2])
+end
+return redis.call('smembers', KEYS[2])
@@ -0,0 +1,11 @@
+---
+--- 作者改为拉模式：记入大V集合，记下第一篇没有推送的博文时间，版本号加一
+--- KEYS[1] 大V集合，KEYS[2] 拉模式起始时间hash（field：作者id是起始时间，作者id:v是版本号）
+--- ARGV[1] 作者id，ARGV[2] 没有推送的博文时间戳
+---
+redis.call('sadd', KEYS[1], ARGV[1])
+local since = redis.call('hget', KEYS[2], ARGV[1])
+if (not since) or tonumber(since) > tonumber(ARGV[2]) then
+    redis.call('hset', KEYS[2], ARGV[1], ARGV[2])
+end
+return redis.call('hincrby', KEYS[2], ARGV[1] .. ':v', 1)
@@ -0,0 +1,12 @@
+---
+--- 作者恢复推模式：补推完成后，期间没有再次改为拉模式（版本号没变）才移出大V集合
+--- KEYS[1] 大V集合，KEYS[2] 拉模式起始时间hash
+--- ARGV[1] 作者id，ARGV[2] 补推前读到的版本号，没有版本号时为空串
+---
+local version = redis.call('hget', KEYS[2], ARGV[1] .. ':v') or ''
+if version ~= ARGV[2] then
+    return 0
+end
+redis.call('srem', KEYS[1], ARGV[1])
+redis.call('hdel', KEYS[2], ARGV[1], ARGV[1] .. ':v')
+return 1
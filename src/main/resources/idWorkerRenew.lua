@@ -0,0 +1,7 @@
+---
+--- 续约workerId：还是自己持有时才延长有效期
+---
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+    return redis.call('expire',KEYS[1],ARGV[2])
+end
+return 0
@@ -0,0 +1,7 @@
+---
+--- 写入hash格式的逻辑过期缓存：exp 逻辑过期时间（毫秒时间戳），data 编码后的数据
+--- 先删除再写入，兼容旧的string格式的key
+---
+redis.call('del', KEYS[1])
+redis.call('hset', KEYS[1], 'exp', ARGV[1], 'data', ARGV[2])
+return 1
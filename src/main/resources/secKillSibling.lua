@@ -0,0 +1,22 @@
+---
+--- 用户所属分片库存不足时，到其他分片扣库存
+--- 一人一单已经在用户所属分片占位，这里只扣库存、发消息
+---
+
+-- 1、参数列表
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+
+-- 2、数据key 库存key、订单队列
+local stockKey = KEYS[1]
+local streamKey = KEYS[2]
+
+--3、判断库存是否充足
+local stock = tonumber(redis.call('get',stockKey))
+if (stock == nil or stock <= 0) then
+    return 1
+end
+--4、扣库存，发送消息到队列中
+redis.call('incrby',stockKey,-1)
+redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId)
+return 0
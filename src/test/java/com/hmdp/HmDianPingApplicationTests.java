@@ -1,17 +1,43 @@
 package com.hmdp;
 
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.IdWorker;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillShardUtils;
+import com.hmdp.utils.SignedTokenCodec;
+import com.hmdp.utils.SnowflakeIdWorker;
+import com.hmdp.utils.UserHolder;
 import org.junit.jupiter.api.Test;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisSentinelConnection;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -25,6 +51,18 @@ class HmDianPingApplicationTests {
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @Value("${hmdp.seckill.stock-shards:4}")
+    private int stockShards;
+
     //线程池
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
@@ -56,6 +94,45 @@ class HmDianPingApplicationTests {
 
     }
 
+    /**
+     * 对比redis发号（当前配置的incr/segment模式）和雪花算法的吞吐，同时检查id不重复
+     */
+    @Test
+    void testIdWorkerCompare() throws InterruptedException {
+        SnowflakeIdWorker snowflakeIdWorker = new SnowflakeIdWorker(stringRedisTemplate);
+        snowflakeIdWorker.start();
+        try {
+            //先各跑一轮预热
+            runIdWorker(redisIdWorker);
+            runIdWorker(snowflakeIdWorker);
+            System.out.println("redis time=" + runIdWorker(redisIdWorker));
+            System.out.println("snowflake time=" + runIdWorker(snowflakeIdWorker));
+        } finally {
+            snowflakeIdWorker.stop();
+        }
+    }
+
+    private long runIdWorker(IdWorker idWorker) throws InterruptedException {
+        CountDownLatch countDownLatch = new CountDownLatch(300);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Runnable task = () -> {
+            for (int i = 0; i < 100; i++) {
+                ids.add(idWorker.nextId("order"));
+            }
+            countDownLatch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        countDownLatch.await();
+        long end = System.currentTimeMillis();
+        if (ids.size() != 300 * 100) {
+            throw new IllegalStateException("id重复：" + (300 * 100 - ids.size()));
+        }
+        return end - begin;
+    }
+
     @Test
     void restRedisson() throws InterruptedException {
         //获取锁（可重入），指定锁的名称
@@ -72,4 +149,172 @@ class HmDianPingApplicationTests {
         }
 
     }
+
+    /**
+     * 秒杀下单被拒绝的请求消耗的redis命令数，只统计下单线程通过计数连接发出的命令
+     * 改造前：先incr生成订单id再执行lua脚本，被拒绝的请求也是2次
+     * 改造后：订单id在消费者落库前批量生成，被拒绝的请求只有1次evalsha
+     */
+    @Test
+    void testSeckillRedisOps() throws Exception {
+        long voucherId = 999999L;
+        int requests = 1000;
+        List<String> keys = new ArrayList<>();
+        //所有用户都已经下过单，请求全部因为重复下单被拒绝
+        for (int shard = 0; shard < stockShards; shard++) {
+            String stockKey = SeckillShardUtils.stockKey(voucherId, shard);
+            stringRedisTemplate.opsForValue().set(stockKey, "100");
+            keys.add(stockKey);
+            keys.add(SeckillShardUtils.orderKey(voucherId, shard));
+        }
+        for (long userId = 1; userId <= requests; userId++) {
+            int shard = SeckillShardUtils.homeShard(userId, stockShards);
+            stringRedisTemplate.opsForSet().add(SeckillShardUtils.orderKey(voucherId, shard), String.valueOf(userId));
+        }
+
+        CountingConnectionFactory countingFactory = new CountingConnectionFactory(redisConnectionFactory);
+        StringRedisTemplate countingTemplate = new StringRedisTemplate(countingFactory);
+        //改造前的链路：incr模式生成订单id，再执行lua脚本
+        RedisIdWorker incrIdWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(incrIdWorker, "stringRedisTemplate", countingTemplate);
+        ReflectionTestUtils.setField(incrIdWorker, "mode", "incr");
+        //消费者线程也用这个template，只替换下单期间，且只统计下单线程的命令
+        Object target = AopTestUtils.getTargetObject(voucherOrderService);
+        Object original = ReflectionTestUtils.getField(target, "stringRedisTemplate");
+        ReflectionTestUtils.setField(target, "stringRedisTemplate", countingTemplate);
+        try {
+            //预热，加载脚本（第一次evalsha返回NOSCRIPT会再eval一次）
+            runRejectedSeckill(voucherId, 1, () -> {});
+            long begin = countingFactory.commands();
+            runRejectedSeckill(voucherId, requests, () -> incrIdWorker.nextId("order"));
+            long before = countingFactory.commands() - begin;
+            begin = countingFactory.commands();
+            runRejectedSeckill(voucherId, requests, () -> {});
+            long after = countingFactory.commands() - begin;
+            System.out.println("redis ops per rejected request: before=" + (double) before / requests
+                    + ", after=" + (double) after / requests);
+            if (before != 2L * requests || after != requests) {
+                throw new IllegalStateException("被拒绝的请求redis命令数不符合预期：before=" + before + ", after=" + after);
+            }
+        } finally {
+            ReflectionTestUtils.setField(target, "stringRedisTemplate", original);
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    /**
+     * 用户1~requests并发秒杀下单，beforeSeckill在下单前执行（模拟改造前先生成订单id）
+     */
+    private void runRejectedSeckill(long voucherId, int requests, Runnable beforeSeckill) throws InterruptedException {
+        CountDownLatch countDownLatch = new CountDownLatch(requests);
+        for (long i = 1; i <= requests; i++) {
+            long userId = i;
+            es.submit(() -> {
+                UserDTO user = new UserDTO();
+                user.setId(userId);
+                UserHolder.saveUser(user);
+                CountingConnectionFactory.COUNTING.set(true);
+                try {
+                    beforeSeckill.run();
+                    voucherOrderService.secKillOrder(voucherId);
+                } finally {
+                    CountingConnectionFactory.COUNTING.remove();
+                    UserHolder.removeUser();
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        countDownLatch.await();
+    }
+
+    /**
+     * 统计redis命令数的连接工厂：连接上的每次命令调用计一次，只统计标记了COUNTING的线程
+     */
+    private static class CountingConnectionFactory implements RedisConnectionFactory {
+        private static final ThreadLocal<Boolean> COUNTING = new ThreadLocal<>();
+        /**
+         * 连接管理方法，不是redis命令
+         */
+        private static final Set<String> NOT_COMMANDS = new HashSet<>(Arrays.asList("close", "isClosed", "getNativeConnection",
+                "isQueueing", "isPipelined", "openPipeline", "closePipeline", "getSentinelConnection", "isSubscribed",
+                "getSubscription", "toString", "hashCode", "equals"));
+
+        private final RedisConnectionFactory delegate;
+        private final AtomicLong commands = new AtomicLong();
+
+        CountingConnectionFactory(RedisConnectionFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        long commands() {
+            return commands.get();
+        }
+
+        @Override
+        public RedisConnection getConnection() {
+            RedisConnection connection = delegate.getConnection();
+            return (RedisConnection) Proxy.newProxyInstance(RedisConnection.class.getClassLoader(),
+                    new Class<?>[]{RedisConnection.class}, (proxy, method, args) -> {
+                        if (Boolean.TRUE.equals(COUNTING.get()) && !NOT_COMMANDS.contains(method.getName())) {
+                            commands.incrementAndGet();
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        @Override
+        public RedisClusterConnection getClusterConnection() {
+            return delegate.getClusterConnection();
+        }
+
+        @Override
+        public boolean getConvertPipelineAndTxResults() {
+            return delegate.getConvertPipelineAndTxResults();
+        }
+
+        @Override
+        public RedisSentinelConnection getSentinelConnection() {
+            return delegate.getSentinelConnection();
+        }
+
+        @Override
+        public DataAccessException translateExceptionIfPossible(RuntimeException ex) {
+            return delegate.translateExceptionIfPossible(ex);
+        }
+    }
+
+    /**
+     * signed模式每个请求的验签开销：签发一个token，单线程反复校验，输出每次校验的耗时
+     */
+    @Test
+    void testSignedTokenVerify() {
+        SignedTokenCodec codec = new SignedTokenCodec("hmdp-benchmark-secret-0123456789abcdef".getBytes(StandardCharsets.UTF_8));
+        String token = codec.encode(new SignedTokenCodec.Claims(1L, 1010L,
+                System.currentTimeMillis() / 1000 + 900, "user_benchmark", "/imgs/icons/benchmark.jpg"));
+        //篡改过的token不能通过校验
+        char[] tampered = token.toCharArray();
+        tampered[2] = tampered[2] == 'A' ? 'B' : 'A';
+        if (codec.decode(new String(tampered)) != null) {
+            throw new IllegalStateException("篡改的token通过了校验");
+        }
+        int rounds = 1_000_000;
+        //预热
+        for (int i = 0; i < rounds / 10; i++) {
+            codec.decode(token);
+        }
+        long begin = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            checksum += codec.decode(token).getUserId();
+        }
+        long end = System.nanoTime();
+        if (checksum != 1010L * rounds) {
+            throw new IllegalStateException("校验结果不一致");
+        }
+        System.out.println("token length=" + token.length() + ", verify ns/op=" + (end - begin) / rounds);
+    }
 }